@@ -0,0 +1,86 @@
+package ca.ubc.cs317.dnslookup.benchmarks;
+
+import ca.ubc.cs317.dnslookup.DNSCache;
+import ca.ubc.cs317.dnslookup.DNSNode;
+import ca.ubc.cs317.dnslookup.RecordType;
+import ca.ubc.cs317.dnslookup.ResourceRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups and insertions of DNSCache under contention. The cache is shared by every thread and
+ * filled with NODES host names before the measurement. Lookups are measured alone, from several
+ * threads, and mixed with insertions, three threads looking names up for each thread adding
+ * records, which is how a busy resolver uses the cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+
+	private static final int NODES = 100_000;
+	private static final long TTL = 3600;
+
+	private DNSCache cache;
+	private DNSNode[] nodes;
+	private InetAddress[] addresses;
+
+	@Setup(Level.Trial)
+	public void setUp() throws UnknownHostException {
+		cache = new DNSCache(DNSCache.DEFAULT_MAXIMUM_ENTRIES, DNSCache.DEFAULT_MAXIMUM_BYTES);
+		nodes = new DNSNode[NODES];
+		addresses = new InetAddress[NODES];
+		for (int i = 0; i < NODES; i++) {
+			nodes[i] = new DNSNode("host" + i + ".example.com", RecordType.A);
+			addresses[i] = InetAddress.getByAddress(new byte[] {10, (byte) (i >> 16), (byte) (i >> 8), (byte) i});
+			cache.addResult(new ResourceRecord(nodes[i].getHostName(), RecordType.A, TTL, addresses[i]));
+		}
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Set<ResourceRecord> get() {
+		return cache.getCachedResults(randomNode());
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(3)
+	public Set<ResourceRecord> mixedGet() {
+		return cache.getCachedResults(randomNode());
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public void mixedAdd() {
+		int i = ThreadLocalRandom.current().nextInt(NODES);
+		// A later expiration than the cached record, so that it replaces it
+		cache.addResult(new ResourceRecord(nodes[i].getHostName(), RecordType.A, TTL, addresses[i]));
+	}
+
+	private DNSNode randomNode() {
+		return nodes[ThreadLocalRandom.current().nextInt(NODES)];
+	}
+}
@@ -0,0 +1,236 @@
+package ca.ubc.cs317.dnslookup.benchmarks;
+
+import ca.ubc.cs317.dnslookup.DNSHeader;
+import ca.ubc.cs317.dnslookup.DNSMessageWriter;
+import ca.ubc.cs317.dnslookup.DNSQuery;
+import ca.ubc.cs317.dnslookup.DNSQueryHandler;
+import ca.ubc.cs317.dnslookup.MalformedResponseException;
+import ca.ubc.cs317.dnslookup.NameResolver;
+import ca.ubc.cs317.dnslookup.RecordType;
+import ca.ubc.cs317.dnslookup.ResourceRecord;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A stand-in name server on a loopback UDP port, answering from a Zone. It can be made slow and
+ * unreliable: each query is answered after a latency drawn uniformly between latency - jitter
+ * and latency + jitter, and is dropped, as if lost on the way, with a given probability.
+ *
+ * A single thread receives the queries, and the responses are sent by a scheduler once their
+ * latency has passed, so slow responses do not hold up the queries behind them.
+ */
+public class FakeNameServer implements AutoCloseable {
+
+	private static final int HEADER_SIZE = 12;
+	private static final int RCODE_FORMERR = 1;
+
+	/**
+	 * The records of a server, looked up once per query.
+	 */
+	public interface Zone {
+		/**
+		 * @param name Name asked about, as decoded from the query
+		 * @param type Type asked about
+		 * @return The response to the query
+		 */
+		Response respond(String name, RecordType type);
+	}
+
+	/**
+	 * The sections and flags of a response. Records that do not fit in the response are left
+	 * out, and the response is marked as truncated.
+	 */
+	public static class Response {
+		final List<ResourceRecord> answers = new ArrayList<>();
+		final List<ResourceRecord> authority = new ArrayList<>();
+		final List<ResourceRecord> additional = new ArrayList<>();
+		final boolean authoritative;
+		final int rcode;
+
+		/**
+		 * @param authoritative true for an answer of the zone, false for a referral
+		 * @param rcode         Response code, such as 3 for NXDOMAIN
+		 */
+		public Response(boolean authoritative, int rcode) {
+			this.authoritative = authoritative;
+			this.rcode = rcode;
+		}
+
+		public Response answer(ResourceRecord record) {
+			answers.add(record);
+			return this;
+		}
+
+		public Response authority(ResourceRecord record) {
+			authority.add(record);
+			return this;
+		}
+
+		public Response additional(ResourceRecord record) {
+			additional.add(record);
+			return this;
+		}
+	}
+
+	private final DatagramChannel channel;
+	private final Zone zone;
+	private final long latencyNanos;
+	private final long jitterNanos;
+	private final double lossRate;
+	private final ScheduledExecutorService scheduler;
+	private final Thread receiver;
+	private final LongAdder queryCount = new LongAdder();
+	private final LongAdder dropCount = new LongAdder();
+
+	/**
+	 * Binds the server and starts answering.
+	 *
+	 * @param address       Address and port the server listens on; port 0 picks a free port
+	 * @param zone          Records the server answers from
+	 * @param latencyMillis Mean time before a query is answered, in milliseconds
+	 * @param jitterMillis  Largest difference between the latency of a query and the mean; at most
+	 *                      the mean, so that no query is answered before it is received
+	 * @param lossRate      Probability that a query is dropped, between 0 and 1
+	 * @throws IOException if the address cannot be bound
+	 */
+	public FakeNameServer(InetSocketAddress address, Zone zone, double latencyMillis, double jitterMillis, double lossRate) throws IOException {
+		this.channel = DatagramChannel.open().bind(address);
+		this.zone = zone;
+		this.latencyNanos = (long) (latencyMillis * 1_000_000);
+		this.jitterNanos = (long) (Math.min(jitterMillis, latencyMillis) * 1_000_000);
+		this.lossRate = lossRate;
+		String name = "fake-dns-" + address.getAddress().getHostAddress();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, name + "-sender");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.receiver = new Thread(this::receive, name);
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	/**
+	 * @return The port the server listens on
+	 */
+	public int getLocalPort() throws IOException {
+		return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * @return The number of queries received, including those dropped
+	 */
+	public long getQueryCount() {
+		return queryCount.sum();
+	}
+
+	/**
+	 * @return The number of queries dropped
+	 */
+	public long getDropCount() {
+		return dropCount.sum();
+	}
+
+	@Override
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException ignored) {
+		}
+		scheduler.shutdownNow();
+	}
+
+	private void receive() {
+		ByteBuffer query = ByteBuffer.allocate(DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE);
+		while (channel.isOpen()) {
+			SocketAddress client;
+			try {
+				query.clear();
+				client = channel.receive(query);
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				continue;
+			}
+			query.flip();
+			queryCount.increment();
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			if (lossRate > 0 && random.nextDouble() < lossRate) {
+				dropCount.increment();
+				continue;
+			}
+			ByteBuffer response = respond(query);
+			if (response == null)
+				continue;
+			long delay = latencyNanos + (jitterNanos > 0 ? random.nextLong(-jitterNanos, jitterNanos + 1) : 0);
+			if (delay <= 0) {
+				send(response, client);
+			} else {
+				try {
+					scheduler.schedule(() -> send(response, client), delay, TimeUnit.NANOSECONDS);
+				} catch (RuntimeException e) {
+					// The server is closing
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The response to a query, in a buffer of its own, or null if the query cannot be
+	 * answered at all
+	 */
+	private ByteBuffer respond(ByteBuffer query) {
+		if (query.remaining() < HEADER_SIZE)
+			return null;
+		DNSHeader header = new DNSHeader();
+		header.decode(query);
+		if (header.QR != 0)
+			return null;
+		ByteBuffer buffer = ByteBuffer.allocate(DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE);
+		DNSQuery question = new DNSQuery();
+		try {
+			question.decode(query, new NameResolver(query), header.QDCOUNT);
+		} catch (MalformedResponseException | BufferUnderflowException | IndexOutOfBoundsException e) {
+			return new DNSMessageWriter(buffer).finish(responseHeader(header, false, RCODE_FORMERR, 0));
+		}
+		// The resolver only leaves EDNS out after a format error, and never with this server
+		boolean edns = header.ARCOUNT > 0;
+		if (!edns)
+			buffer.limit(512);
+		DNSMessageWriter writer = new DNSMessageWriter(buffer);
+		if (edns)
+			writer.setEdns(DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE);
+		writer.writeQuestion(question);
+		Response response = zone.respond(question.QNAME, RecordType.getByCode(question.QTYPE));
+		response.answers.forEach(writer::addAnswer);
+		response.authority.forEach(writer::addAuthority);
+		response.additional.forEach(writer::addAdditional);
+		return writer.finish(responseHeader(header, response.authoritative, response.rcode, 1));
+	}
+
+	private static DNSHeader responseHeader(DNSHeader query, boolean authoritative, int rcode, int questions) {
+		return new DNSHeader(query.ID, 1, query.Opcode, authoritative ? 1 : 0, 0, query.RD, 0, 0, rcode, questions, 0, 0, 0);
+	}
+
+	private void send(ByteBuffer response, SocketAddress client) {
+		try {
+			channel.send(response, client);
+		} catch (IOException e) {
+			// Lost, as the resolver will find out
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package ca.ubc.cs317.dnslookup.benchmarks;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Latencies of the lookups of a load test. Every latency is kept, so percentiles are exact; a
+ * run of a few minutes at a few thousand queries per second only takes a few megabytes.
+ * The histogram is printed with one bucket per power of two.
+ */
+final class LatencyHistogram {
+
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+	private static final int BAR_WIDTH = 50;
+
+	private long[] latencies = new long[1 << 16];
+	private int count = 0;
+
+	/**
+	 * @param nanos Latency of a lookup, in nanoseconds
+	 */
+	synchronized void record(long nanos) {
+		if (count == latencies.length)
+			latencies = Arrays.copyOf(latencies, count * 2);
+		latencies[count++] = nanos;
+	}
+
+	synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * Prints the percentiles of the latencies, then their histogram.
+	 */
+	synchronized void print(PrintStream out) {
+		if (count == 0) {
+			out.println("No latencies recorded.");
+			return;
+		}
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+		out.printf("Latency (ms): min %.3f", millis(sorted[0]));
+		for (double percentile : PERCENTILES) {
+			int rank = (int) Math.ceil(percentile / 100 * count) - 1;
+			out.printf("  p%s %.3f", formatPercentile(percentile), millis(sorted[Math.max(rank, 0)]));
+		}
+		out.printf("  max %.3f%n", millis(sorted[count - 1]));
+
+		// Buckets [2^k, 2^(k+1)) microseconds, from the lowest to the highest one used
+		int[] buckets = new int[64];
+		int first = 63;
+		int last = 0;
+		for (long latency : sorted) {
+			long micros = Math.max(latency / 1000, 1);
+			int bucket = 63 - Long.numberOfLeadingZeros(micros);
+			buckets[bucket]++;
+			first = Math.min(first, bucket);
+			last = Math.max(last, bucket);
+		}
+		int largest = Arrays.stream(buckets).max().getAsInt();
+		int cumulative = 0;
+		for (int bucket = first; bucket <= last; bucket++) {
+			cumulative += buckets[bucket];
+			out.printf("  %10.3f - %10.3f ms %9d %7.3f%% %s%n",
+					(1L << bucket) / 1000.0, (1L << (bucket + 1)) / 1000.0, buckets[bucket],
+					100.0 * cumulative / count, "#".repeat((int) ((long) buckets[bucket] * BAR_WIDTH / largest)));
+		}
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1_000_000.0;
+	}
+
+	private static String formatPercentile(double percentile) {
+		return percentile == Math.rint(percentile) ? String.valueOf((int) percentile) : String.valueOf(percentile).replace(".", "");
+	}
+}
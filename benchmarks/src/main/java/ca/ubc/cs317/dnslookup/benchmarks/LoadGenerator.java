@@ -0,0 +1,325 @@
+package ca.ubc.cs317.dnslookup.benchmarks;
+
+import ca.ubc.cs317.dnslookup.DNSCache;
+import ca.ubc.cs317.dnslookup.DNSNode;
+import ca.ubc.cs317.dnslookup.RecordType;
+import ca.ubc.cs317.dnslookup.Resolver;
+import ca.ubc.cs317.dnslookup.ResolverConfig;
+import ca.ubc.cs317.dnslookup.ResourceRecord;
+import ca.ubc.cs317.dnslookup.UDPTransport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Load test of the whole resolver, offline. A root, a com and an example.com server are started
+ * on 127.0.0.1, 127.0.0.2 and 127.0.0.3, on the same UDP port, with the configured latency and
+ * loss, and a Resolver set up as DNSLookupService sets it up resolves names of example.com at a
+ * fixed rate. As in DNSLookupService, all lookups share the cache and the zone cuts the
+ * resolver has learnt, so only the first lookups start at the root, and later ones go to the
+ * example.com server directly for any name that is not cached. What is measured is a warm
+ * resolver: cache hits and misses, CNAME chains, negative answers and retries after lost
+ * queries, with referrals only again once the delegations expire after -ttl seconds.
+ *
+ * Names are drawn from a population of -names names with a Zipf distribution of exponent -zipf
+ * (0 for uniform), so the most popular names are answered by the cache. A fraction -nxdomain of
+ * the names do not exist, and a fraction -cname of them are the head of a chain of -chain CNAME
+ * records, each resolved by its own query, leading to an address. A fraction -nxcname of them
+ * are aliases of names that do not exist, answered with the CNAME record and NXDOMAIN in the
+ * same response; their lookups end without records, and the alias itself, which does exist, is
+ * counted as wrong if the cache holds it as a name that does not. The names queried are drawn
+ * from -seed before the run, so runs with the same options send the same queries.
+ *
+ * The load is open loop: queries are sent on schedule whether or not earlier ones have been
+ * answered, and the latency of a lookup is measured from when it was due to be sent, so a stall
+ * of the resolver shows up in the latencies of every lookup it delayed. Lookups sent during the
+ * first -warmup seconds are not recorded.
+ *
+ * Loopback addresses other than 127.0.0.1 are only usable without configuration on Linux.
+ */
+public class LoadGenerator {
+
+	private static final String ROOT_ADDRESS = "127.0.0.1";
+	private static final String TLD_ADDRESS = "127.0.0.2";
+	private static final String AUTH_ADDRESS = "127.0.0.3";
+	private static final String ZONE = "example.com";
+	private static final int UDP_CHANNEL_COUNT = 4;
+	private static final int RCODE_NXDOMAIN = 3;
+	// Lookups still in progress after the run are waited for this long beyond the lookup timeout
+	private static final long DRAIN_GRACE_MILLIS = 1000;
+	// First label of the names of the zone: h<i> has an address, c<i> and c<i>-<k> are a CNAME
+	// chain leading to h<i>, d<i> is an alias of n<i>, and n<i> does not exist
+	private static final Pattern ZONE_NAME = Pattern.compile("([hcdn])(\\d+)(?:-(\\d+))?\\." + Pattern.quote(ZONE));
+
+	private final Map<String, String> options;
+	private final int chainLength;
+	private final long ttl;
+
+	private LoadGenerator(Map<String, String> options) {
+		this.options = options;
+		this.chainLength = Math.max(1, intOption("chain"));
+		this.ttl = intOption("ttl");
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<>();
+		options.put("qps", "1000");
+		options.put("duration", "10");
+		options.put("warmup", "2");
+		options.put("names", "10000");
+		options.put("zipf", "1.0");
+		options.put("nxdomain", "0.1");
+		options.put("cname", "0.1");
+		options.put("chain", "2");
+		options.put("nxcname", "0.05");
+		options.put("ttl", "300");
+		options.put("latency", "2");
+		options.put("jitter", "1");
+		options.put("loss", "0");
+		options.put("port", "0");
+		options.put("seed", "1");
+		for (int i = 0; i < args.length; i++) {
+			String key = args[i].startsWith("-") ? args[i].substring(1) : null;
+			if (key == null || !options.containsKey(key) || i + 1 == args.length)
+				usage(options, args[i]);
+			options.put(key, args[++i]);
+		}
+		try {
+			new LoadGenerator(options).run();
+		} catch (NumberFormatException e) {
+			usage(options, e.getMessage());
+		}
+	}
+
+	private static void usage(Map<String, String> defaults, String invalid) {
+		System.err.println("Invalid argument: " + invalid);
+		System.err.println("Usage: LoadGenerator [-option value]...");
+		System.err.println("Options, with their default values:");
+		defaults.forEach((key, value) -> System.err.println("\t-" + key + " " + value));
+		System.exit(1);
+	}
+
+	private void run() throws IOException, InterruptedException {
+		double qps = doubleOption("qps");
+		int names = intOption("names");
+		long warmupQueries = (long) (qps * doubleOption("warmup"));
+		long totalQueries = warmupQueries + (long) (qps * doubleOption("duration"));
+		Random random = new Random(intOption("seed"));
+		DNSNode[] population = population(names, random);
+		int[] schedule = zipfSchedule(totalQueries, names, doubleOption("zipf"), random);
+
+		double latency = doubleOption("latency");
+		double jitter = doubleOption("jitter");
+		double loss = doubleOption("loss");
+		FakeNameServer root = new FakeNameServer(new InetSocketAddress(ROOT_ADDRESS, intOption("port")), this::rootZone, latency, jitter, loss);
+		int port = root.getLocalPort();
+		FakeNameServer tld = new FakeNameServer(new InetSocketAddress(TLD_ADDRESS, port), this::tldZone, latency, jitter, loss);
+		FakeNameServer auth = new FakeNameServer(new InetSocketAddress(AUTH_ADDRESS, port), this::authZone, latency, jitter, loss);
+
+		ResolverConfig config = new ResolverConfig(InetAddress.getByName(ROOT_ADDRESS));
+		config.setPort(port);
+		DNSCache cache = new DNSCache(DNSCache.DEFAULT_MAXIMUM_ENTRIES, DNSCache.DEFAULT_MAXIMUM_BYTES);
+		UDPTransport transport = new UDPTransport(UDP_CHANNEL_COUNT);
+		Resolver resolver = new Resolver(config, cache, transport);
+
+		System.out.println("Options: " + options);
+		System.out.printf("Fake servers on port %d; sending %d queries (%d in the warmup) at %.0f per second%n",
+				port, totalQueries, warmupQueries, qps);
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		LongAdder answered = new LongAdder();
+		LongAdder nameErrors = new LongAdder();
+		LongAdder wrong = new LongAdder();
+		LongAdder failed = new LongAdder();
+		AtomicInteger outstanding = new AtomicInteger();
+		long periodNanos = (long) (1e9 / qps);
+		long start = System.nanoTime();
+		long measureStart = start + warmupQueries * periodNanos;
+		for (long i = 0; i < totalQueries; i++) {
+			long due = start + i * periodNanos;
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0)
+				LockSupport.parkNanos(wait);
+			DNSNode node = population[schedule[(int) i]];
+			boolean measured = i >= warmupQueries;
+			String hostName = node.getHostName();
+			boolean dangling = hostName.startsWith("d");
+			boolean exists = !hostName.startsWith("n") && !dangling;
+			outstanding.incrementAndGet();
+			resolver.resolve(node).whenComplete((results, e) -> {
+				long elapsed = System.nanoTime() - due;
+				outstanding.decrementAndGet();
+				if (!measured)
+					return;
+				histogram.record(elapsed);
+				if (e != null)
+					failed.increment();
+				else if (results.isEmpty() == exists || (dangling && cache.isNameError(hostName)))
+					wrong.increment();
+				else if (exists)
+					answered.increment();
+				else
+					nameErrors.increment();
+			});
+		}
+		long sendEnd = System.nanoTime();
+		long drainDeadline = sendEnd + TimeUnit.MILLISECONDS.toNanos(config.getLookupTimeoutMillis() + DRAIN_GRACE_MILLIS);
+		while (outstanding.get() > 0 && System.nanoTime() < drainDeadline)
+			Thread.sleep(10);
+		long end = System.nanoTime();
+
+		double sendSeconds = (sendEnd - measureStart) / 1e9;
+		double totalSeconds = (end - measureStart) / 1e9;
+		long measuredQueries = totalQueries - warmupQueries;
+		System.out.printf("Sent %d queries in %.3f s (%.0f per second)%n", measuredQueries, sendSeconds, measuredQueries / sendSeconds);
+		System.out.printf("Completed %d lookups in %.3f s (%.0f per second), %d still in progress%n",
+				histogram.getCount(), totalSeconds, histogram.getCount() / totalSeconds, outstanding.get());
+		System.out.printf("Outcomes: %d answered, %d NXDOMAIN, %d wrong, %d failed%n",
+				answered.sum(), nameErrors.sum(), wrong.sum(), failed.sum());
+		histogram.print(System.out);
+		System.out.printf("Server queries (dropped): root %d (%d), com %d (%d), %s %d (%d)%n",
+				root.getQueryCount(), root.getDropCount(), tld.getQueryCount(), tld.getDropCount(),
+				ZONE, auth.getQueryCount(), auth.getDropCount());
+		System.out.println("Cache: " + cache.getStats());
+
+		resolver.close();
+		transport.close();
+		root.close();
+		tld.close();
+		auth.close();
+	}
+
+	/**
+	 * Builds the names of the zone, by popularity, each being an address, the head of a CNAME
+	 * chain, an alias of a name that does not exist or a name that does not exist.
+	 */
+	private DNSNode[] population(int names, Random random) {
+		double nameErrorRatio = doubleOption("nxdomain");
+		double cnameRatio = doubleOption("cname");
+		double danglingRatio = doubleOption("nxcname");
+		DNSNode[] population = new DNSNode[names];
+		for (int i = 0; i < names; i++) {
+			double kind = random.nextDouble();
+			String label = kind < nameErrorRatio ? "n"
+					: kind < nameErrorRatio + cnameRatio ? "c"
+					: kind < nameErrorRatio + cnameRatio + danglingRatio ? "d"
+					: "h";
+			population[i] = new DNSNode(label + i + "." + ZONE, RecordType.A);
+		}
+		return population;
+	}
+
+	/**
+	 * Draws the rank of the name of every query, rank r having a probability proportional to
+	 * 1 / (r + 1)^exponent.
+	 */
+	private static int[] zipfSchedule(long queries, int names, double exponent, Random random) {
+		double[] cumulative = new double[names];
+		double sum = 0;
+		for (int rank = 0; rank < names; rank++) {
+			sum += 1 / Math.pow(rank + 1, exponent);
+			cumulative[rank] = sum;
+		}
+		int[] schedule = new int[Math.toIntExact(queries)];
+		for (int i = 0; i < schedule.length; i++) {
+			int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+			schedule[i] = Math.min(rank < 0 ? -rank - 1 : rank, names - 1);
+		}
+		return schedule;
+	}
+
+	private FakeNameServer.Response rootZone(String name, RecordType type) {
+		if (!isUnder(name, "com"))
+			return nameError("", "a.root-servers.net");
+		return new FakeNameServer.Response(false, 0)
+				.authority(new ResourceRecord("com", RecordType.NS, ttl, "a.gtld-servers.net"))
+				.additional(address("a.gtld-servers.net", TLD_ADDRESS));
+	}
+
+	private FakeNameServer.Response tldZone(String name, RecordType type) {
+		if (!isUnder(name, ZONE))
+			return nameError("com", "a.gtld-servers.net");
+		return new FakeNameServer.Response(false, 0)
+				.authority(new ResourceRecord(ZONE, RecordType.NS, ttl, "ns1." + ZONE))
+				.additional(address("ns1." + ZONE, AUTH_ADDRESS));
+	}
+
+	private FakeNameServer.Response authZone(String name, RecordType type) {
+		if (name.equalsIgnoreCase("ns1." + ZONE))
+			return new FakeNameServer.Response(true, 0).answer(address(name, AUTH_ADDRESS));
+		Matcher matcher = ZONE_NAME.matcher(name.toLowerCase());
+		if (!matcher.matches() || matcher.group(1).equals("n"))
+			return nameError(ZONE, "ns1." + ZONE);
+		int index = Integer.parseInt(matcher.group(2));
+		if (matcher.group(1).equals("d")) {
+			if (matcher.group(3) != null)
+				return nameError(ZONE, "ns1." + ZONE);
+			// The target does not exist, which the server says along with the alias (RFC 2308)
+			ResourceRecord alias = new ResourceRecord(name, RecordType.CNAME, ttl, "n" + index + "." + ZONE);
+			if (type == RecordType.CNAME)
+				return new FakeNameServer.Response(true, 0).answer(alias);
+			return nameError(ZONE, "ns1." + ZONE).answer(alias);
+		}
+		if (matcher.group(1).equals("h")) {
+			if (matcher.group(3) != null || type != RecordType.A)
+				return new FakeNameServer.Response(true, 0).authority(soa(ZONE, "ns1." + ZONE));
+			return new FakeNameServer.Response(true, 0).answer(new ResourceRecord(name, RecordType.A, ttl, hostAddress(index)));
+		}
+		// Link k of the chain of c<i> (the head being link 0) points to link k + 1, the last to h<i>
+		int link = matcher.group(3) == null ? 0 : Integer.parseInt(matcher.group(3));
+		if (link >= chainLength)
+			return nameError(ZONE, "ns1." + ZONE);
+		String target = link + 1 < chainLength ? "c" + index + "-" + (link + 1) + "." + ZONE : "h" + index + "." + ZONE;
+		return new FakeNameServer.Response(true, 0).answer(new ResourceRecord(name, RecordType.CNAME, ttl, target));
+	}
+
+	private FakeNameServer.Response nameError(String zone, String primary) {
+		return new FakeNameServer.Response(true, RCODE_NXDOMAIN).authority(soa(zone, primary));
+	}
+
+	private ResourceRecord soa(String zone, String primary) {
+		// The negative TTL of the zone is the last field, as the cache keeps SOA records
+		return new ResourceRecord(zone, RecordType.SOA, ttl, primary + " hostmaster." + primary + " 1 7200 3600 1209600 " + ttl);
+	}
+
+	private ResourceRecord address(String name, String address) {
+		try {
+			return new ResourceRecord(name, RecordType.A, ttl, InetAddress.getByName(address));
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private static InetAddress hostAddress(int index) {
+		try {
+			return InetAddress.getByAddress(new byte[] {10, (byte) (index >> 16), (byte) (index >> 8), (byte) index});
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private static boolean isUnder(String name, String zone) {
+		String lower = name.toLowerCase();
+		return lower.equals(zone) || lower.endsWith("." + zone);
+	}
+
+	private int intOption(String key) {
+		return Integer.parseInt(options.get(key));
+	}
+
+	private double doubleOption(String key) {
+		return Double.parseDouble(options.get(key));
+	}
+}
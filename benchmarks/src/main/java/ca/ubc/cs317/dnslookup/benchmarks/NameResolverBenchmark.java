@@ -0,0 +1,84 @@
+package ca.ubc.cs317.dnslookup.benchmarks;
+
+import ca.ubc.cs317.dnslookup.MalformedResponseException;
+import ca.ubc.cs317.dnslookup.NameResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of compressed names by NameResolver.getName. Every name of a referral from a root
+ * server is decoded, as DNSResponse does: the owner and target of its 13 NS records and the
+ * owners of their glue, nearly all of which point into "gtld-servers.net" and "com".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NameResolverBenchmark {
+
+	private static final int HEADER_SIZE = 12;
+
+	private ByteBuffer response;
+	// Offsets of the names of the response, in the order they appear
+	private int[] nameOffsets;
+
+	@Setup
+	public void setUp() throws MalformedResponseException {
+		response = Packets.load(Packets.ROOT_REFERRAL);
+		nameOffsets = findNames(response);
+	}
+
+	@Benchmark
+	public void allNames(Blackhole blackhole) throws MalformedResponseException {
+		// A resolver is made per response, as its decoded names are only valid for that message
+		NameResolver resolver = new NameResolver(response);
+		for (int offset : nameOffsets)
+			blackhole.consume(resolver.getName(offset));
+	}
+
+	/**
+	 * Walks the sections of a response to find where its names are: the question, the owner of
+	 * every record, and the target of NS and CNAME records.
+	 */
+	private static int[] findNames(ByteBuffer response) throws MalformedResponseException {
+		ByteBuffer buffer = response.duplicate();
+		NameResolver resolver = new NameResolver(buffer);
+		int questions = buffer.getShort(4) & 0xFFFF;
+		int records = (buffer.getShort(6) & 0xFFFF) + (buffer.getShort(8) & 0xFFFF) + (buffer.getShort(10) & 0xFFFF);
+		List<Integer> offsets = new ArrayList<>();
+		buffer.position(HEADER_SIZE);
+		for (int i = 0; i < questions; i++) {
+			offsets.add(buffer.position());
+			resolver.getName();
+			buffer.position(buffer.position() + 4);
+		}
+		for (int i = 0; i < records; i++) {
+			offsets.add(buffer.position());
+			resolver.getName();
+			int type = buffer.getShort() & 0xFFFF;
+			buffer.position(buffer.position() + 6);
+			int length = buffer.getShort() & 0xFFFF;
+			// NS (2) and CNAME (5) records hold a name
+			if (type == 2 || type == 5)
+				offsets.add(buffer.position());
+			buffer.position(buffer.position() + length);
+		}
+		return offsets.stream().mapToInt(Integer::intValue).toArray();
+	}
+}
@@ -0,0 +1,52 @@
+package ca.ubc.cs317.dnslookup.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Loads the responses the benchmarks decode. They are kept as hex dumps next to this class, one
+ * or more bytes per line; lines starting with '#' are comments describing the response.
+ */
+final class Packets {
+
+	static final String ROOT_REFERRAL = "root-referral.hex";
+	static final String COM_REFERRAL = "com-referral.hex";
+	static final String CNAME_ANSWER = "cname-answer.hex";
+
+	private Packets() {
+	}
+
+	/**
+	 * @param name File name of the hex dump
+	 * @return A read-only buffer holding the response, positioned at its start
+	 */
+	static ByteBuffer load(String name) {
+		try (InputStream in = Packets.class.getResourceAsStream(name)) {
+			if (in == null)
+				throw new IllegalArgumentException("No packet named " + name);
+			String dump = new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+			ByteBuffer buffer = ByteBuffer.allocate(dump.length() / 2);
+			for (String line : dump.split("\n")) {
+				line = line.strip();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				for (String hex : line.split("\\s+"))
+					buffer.put((byte) Integer.parseInt(hex, 16));
+			}
+			return buffer.flip().asReadOnlyBuffer();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @param packet Buffer returned by load
+	 * @return The transaction ID of the response, which decoding checks against
+	 */
+	static int transactionID(ByteBuffer packet) {
+		return packet.getShort(0) & 0xFFFF;
+	}
+}
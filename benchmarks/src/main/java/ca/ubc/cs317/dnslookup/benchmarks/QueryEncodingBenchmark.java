@@ -0,0 +1,61 @@
+package ca.ubc.cs317.dnslookup.benchmarks;
+
+import ca.ubc.cs317.dnslookup.DNSNode;
+import ca.ubc.cs317.dnslookup.DNSQueryHandler;
+import ca.ubc.cs317.dnslookup.RecordType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of queries by DNSQueryHandler.getMessageQuery. The query of a node is encoded once
+ * and kept as a template, so two cases are measured: a node whose template is kept (the usual
+ * case while resolving, where the same servers are asked about the same names), and a stream of
+ * distinct nodes, more than the templates kept, so that nearly every query is encoded anew.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryEncodingBenchmark {
+
+	// More than the templates DNSQueryHandler keeps, so they are dropped before being reused
+	private static final int DISTINCT_NODES = 10_000;
+
+	private DNSNode node;
+	private DNSNode[] nodes;
+	private int next = 0;
+	private int transactionID = 0;
+
+	@Setup
+	public void setUp() {
+		node = new DNSNode("www.example.com", RecordType.A);
+		nodes = new DNSNode[DISTINCT_NODES];
+		for (int i = 0; i < nodes.length; i++)
+			nodes[i] = new DNSNode("host" + i + ".cs.ubc.ca", RecordType.A);
+	}
+
+	@Benchmark
+	public ByteBuffer cachedTemplate() {
+		return DNSQueryHandler.getMessageQuery(node, ++transactionID & 0xFFFF);
+	}
+
+	@Benchmark
+	public ByteBuffer newTemplate() {
+		DNSNode query = nodes[next];
+		next = (next + 1) % nodes.length;
+		return DNSQueryHandler.getMessageQuery(query, ++transactionID & 0xFFFF);
+	}
+}
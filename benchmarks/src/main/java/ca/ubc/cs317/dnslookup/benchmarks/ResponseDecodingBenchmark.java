@@ -0,0 +1,53 @@
+package ca.ubc.cs317.dnslookup.benchmarks;
+
+import ca.ubc.cs317.dnslookup.DNSCache;
+import ca.ubc.cs317.dnslookup.DNSResponse;
+import ca.ubc.cs317.dnslookup.Referral;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of whole responses by DNSResponse.decode, including the records being added to the
+ * cache, on a referral from a root server, a referral from a com server and an answer that
+ * follows a CNAME chain. The records are already cached after the first decode, so what is
+ * measured is the steady state, in which decoded records replace equal ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseDecodingBenchmark {
+
+	@Param({Packets.ROOT_REFERRAL, Packets.COM_REFERRAL, Packets.CNAME_ANSWER})
+	public String packet;
+
+	private ByteBuffer response;
+	private int transactionID;
+	private DNSCache cache;
+
+	@Setup
+	public void setUp() {
+		response = Packets.load(packet);
+		transactionID = Packets.transactionID(response);
+		cache = new DNSCache(DNSCache.DEFAULT_MAXIMUM_ENTRIES, DNSCache.DEFAULT_MAXIMUM_BYTES);
+	}
+
+	@Benchmark
+	public Referral decode() throws Exception {
+		return new DNSResponse().decode(transactionID, response.duplicate(), cache);
+	}
+}
@@ -0,0 +1,260 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Decides which nodes the DNS cache keeps once it is full, using W-TinyLFU.
+ *
+ * New nodes enter a small LRU window (1% of the entry limit), so the results of the lookup in
+ * progress are always cached. Nodes leaving the window become candidates for the main area, a
+ * segmented LRU made of a probation and a protected segment. A candidate is only admitted if a
+ * frequency sketch says it has been used more often than the victim it would replace; nodes read
+ * again while on probation are promoted to the protected segment. Nodes that are used all the
+ * time, like TLD nameservers and their addresses, stay in the main area, and one-off lookups
+ * leave the cache after their time in the window.
+ *
+ * Every node weighs the number of records it holds, and an approximate size in bytes. Eviction
+ * continues while either total is over its limit.
+ *
+ * Writes update the policy under a lock. Reads only record the node in a striped, lossy buffer
+ * which is replayed under the lock when a stripe fills up, so the hit path never blocks.
+ */
+final class CacheEvictionPolicy {
+
+	private static final int READ_BUFFER_STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+	private static final int READ_BUFFER_SIZE = 16;
+	// Space counters of different stripes apart so they do not share a cache line
+	private static final int COUNTER_STRIDE = 16;
+	private static final double WINDOW_FRACTION = 0.01;
+	private static final double PROTECTED_FRACTION = 0.8;
+
+	private final long maximumEntries;
+	private final long maximumBytes;
+	private final long windowMaximum;
+	private final long protectedMaximum;
+	private final Consumer<DNSNode> evictionListener;
+	private final FrequencySketch sketch;
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final AtomicReferenceArray<DNSNode> readBuffer = new AtomicReferenceArray<>(READ_BUFFER_STRIPES * READ_BUFFER_SIZE);
+	private final AtomicIntegerArray readCounters = new AtomicIntegerArray(READ_BUFFER_STRIPES * COUNTER_STRIDE);
+
+	private final LinkedHashMap<DNSNode, Weight> window = new LinkedHashMap<>();
+	private final LinkedHashMap<DNSNode, Weight> probation = new LinkedHashMap<>();
+	private final LinkedHashMap<DNSNode, Weight> protectedSegment = new LinkedHashMap<>();
+	private long windowEntries, protectedEntries, totalEntries, totalBytes;
+	private long evictionCount, admittedCount, rejectedCount;
+
+	/**
+	 * @param maximumEntries   Maximum number of records held by the cache.
+	 * @param maximumBytes     Maximum approximate size of the cached records, in bytes.
+	 * @param evictionListener Called, under the policy lock, with every node that must leave the cache.
+	 */
+	CacheEvictionPolicy(long maximumEntries, long maximumBytes, Consumer<DNSNode> evictionListener) {
+		this.maximumEntries = maximumEntries;
+		this.maximumBytes = maximumBytes;
+		this.windowMaximum = Math.max(1, (long) (maximumEntries * WINDOW_FRACTION));
+		this.protectedMaximum = (long) ((maximumEntries - windowMaximum) * PROTECTED_FRACTION);
+		this.evictionListener = evictionListener;
+		this.sketch = new FrequencySketch(Math.min(maximumEntries, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Records a cache hit on a node. This never blocks; when the buffer of the calling thread is
+	 * full, it is replayed only if no other thread holds the lock, and reads may otherwise be lost.
+	 *
+	 * @param node Node that was read.
+	 */
+	void recordRead(DNSNode node) {
+		int stripe = (int) Thread.currentThread().getId() & (READ_BUFFER_STRIPES - 1);
+		int count = readCounters.getAndIncrement(stripe * COUNTER_STRIDE);
+		readBuffer.lazySet(stripe * READ_BUFFER_SIZE + (count & (READ_BUFFER_SIZE - 1)), node);
+		if ((count & (READ_BUFFER_SIZE - 1)) == READ_BUFFER_SIZE - 1 && lock.tryLock()) {
+			try {
+				drainReadBuffer();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Records a change in the records held by a node, and evicts nodes if the cache is now over
+	 * one of its limits. A node that is not known yet enters the window; a node whose weight drops
+	 * to zero is forgotten.
+	 *
+	 * @param node    Node whose records changed.
+	 * @param entries Number of records added (positive) or removed (negative).
+	 * @param bytes   Approximate number of bytes added or removed.
+	 */
+	void recordWrite(DNSNode node, int entries, long bytes) {
+		lock.lock();
+		try {
+			drainReadBuffer();
+			Weight weight = weightOf(node);
+			if (weight == null) {
+				if (entries <= 0)
+					return;
+				weight = new Weight();
+				window.put(node, weight);
+				sketch.increment(node);
+			}
+			weight.entries += entries;
+			weight.bytes += bytes;
+			totalEntries += entries;
+			totalBytes += bytes;
+			if (window.containsKey(node))
+				windowEntries += entries;
+			else if (protectedSegment.containsKey(node))
+				protectedEntries += entries;
+			if (weight.entries <= 0)
+				discard(node);
+			else
+				evict();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the counters of this policy.
+	 *
+	 * @param hitCount  Number of cache hits, counted by the cache.
+	 * @param missCount Number of cache misses, counted by the cache.
+	 * @return CacheStats
+	 */
+	CacheStats stats(long hitCount, long missCount) {
+		lock.lock();
+		try {
+			return new CacheStats(hitCount, missCount, evictionCount, admittedCount, rejectedCount, totalEntries, totalBytes);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void drainReadBuffer() {
+		for (int i = 0; i < readBuffer.length(); i++) {
+			DNSNode node = readBuffer.getAndSet(i, null);
+			if (node != null)
+				onAccess(node);
+		}
+	}
+
+	private void onAccess(DNSNode node) {
+		sketch.increment(node);
+		Weight weight;
+		if ((weight = window.remove(node)) != null) {
+			window.put(node, weight);
+		} else if ((weight = probation.remove(node)) != null) {
+			protectedSegment.put(node, weight);
+			protectedEntries += weight.entries;
+			while (protectedEntries > protectedMaximum && protectedSegment.size() > 1) {
+				Iterator<Map.Entry<DNSNode, Weight>> eldest = protectedSegment.entrySet().iterator();
+				Map.Entry<DNSNode, Weight> demoted = eldest.next();
+				eldest.remove();
+				protectedEntries -= demoted.getValue().entries;
+				probation.put(demoted.getKey(), demoted.getValue());
+			}
+		} else if ((weight = protectedSegment.remove(node)) != null) {
+			protectedSegment.put(node, weight);
+		}
+	}
+
+	private void evict() {
+		// Nodes pushed out of the window become candidates at the young end of probation
+		List<DNSNode> candidates = new ArrayList<>();
+		while (windowEntries > windowMaximum && window.size() > 1) {
+			DNSNode candidate = window.keySet().iterator().next();
+			Weight weight = window.remove(candidate);
+			windowEntries -= weight.entries;
+			probation.put(candidate, weight);
+			candidates.add(candidate);
+		}
+
+		for (DNSNode candidate : candidates) {
+			if (!isOverLimit())
+				break;
+			if (!probation.containsKey(candidate))
+				continue;
+			DNSNode victim = eldestOtherThan(candidate);
+			if (victim == null || sketch.frequency(candidate) <= sketch.frequency(victim)) {
+				rejectedCount++;
+				evict(candidate);
+			} else {
+				evict(victim);
+			}
+		}
+		for (DNSNode candidate : candidates) {
+			if (probation.containsKey(candidate))
+				admittedCount++;
+		}
+
+		while (isOverLimit()) {
+			DNSNode victim = eldestOf(probation);
+			if (victim == null)
+				victim = eldestOf(protectedSegment);
+			if (victim == null)
+				victim = eldestOf(window);
+			if (victim == null)
+				return;
+			evict(victim);
+		}
+	}
+
+	private boolean isOverLimit() {
+		return totalEntries > maximumEntries || totalBytes > maximumBytes;
+	}
+
+	private DNSNode eldestOtherThan(DNSNode candidate) {
+		for (DNSNode node : probation.keySet()) {
+			if (!node.equals(candidate))
+				return node;
+		}
+		return eldestOf(protectedSegment);
+	}
+
+	private static DNSNode eldestOf(LinkedHashMap<DNSNode, Weight> segment) {
+		return segment.isEmpty() ? null : segment.keySet().iterator().next();
+	}
+
+	private void evict(DNSNode node) {
+		discard(node);
+		evictionCount++;
+		evictionListener.accept(node);
+	}
+
+	private void discard(DNSNode node) {
+		Weight weight;
+		if ((weight = window.remove(node)) != null) {
+			windowEntries -= weight.entries;
+		} else if ((weight = protectedSegment.remove(node)) != null) {
+			protectedEntries -= weight.entries;
+		} else if ((weight = probation.remove(node)) == null) {
+			return;
+		}
+		totalEntries -= weight.entries;
+		totalBytes -= weight.bytes;
+	}
+
+	private Weight weightOf(DNSNode node) {
+		Weight weight = window.get(node);
+		if (weight == null)
+			weight = probation.get(node);
+		if (weight == null)
+			weight = protectedSegment.get(node);
+		return weight;
+	}
+
+	private static final class Weight {
+		int entries;
+		long bytes;
+	}
+}
@@ -0,0 +1,200 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves the records of a DNS cache to a file, and loads them back, so a restarted resolver does
+ * not start with an empty cache.
+ *
+ * A snapshot is a header (magic number, format version and the time it was written) followed
+ * by one entry per record, until the end of the file. Each entry holds the host name, the type
+ * code, the absolute expiration time and original TTL, and either the raw address bytes or the
+ * text of the record. Strings are UTF-8, preceded by their length. Expiration times are
+ * absolute, so records that expired while the resolver was down are skipped when the snapshot
+ * is loaded, and the others keep their remaining TTL.
+ *
+ * Snapshots are written to a temporary file of their own that then replaces the previous
+ * snapshot, so a crash while writing never leaves a partial snapshot behind, and two writes at
+ * once never mix their records. They are read through a memory mapping of the file.
+ */
+public class CacheSnapshot {
+
+	private static final int MAGIC = 0x444E5343; // "DNSC"
+	private static final short VERSION = 1;
+	private static final byte TEXT_RESULT = 0;
+	private static final byte IPV4_RESULT = 1;
+	private static final byte IPV6_RESULT = 2;
+	// Time the shutdown hook waits for a periodic snapshot in progress before writing the last one
+	private static final long SHUTDOWN_WAIT_SECONDS = 10;
+
+	/**
+	 * Writes every record of the cache to a snapshot file.
+	 *
+	 * @param cache Cache whose records are saved.
+	 * @param path  File the snapshot is written to. It is replaced once the snapshot is complete.
+	 * @return The number of records written.
+	 * @throws IOException if the snapshot could not be written
+	 */
+	public static int write(DNSCache cache, Path path) throws IOException {
+		Path temporary = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+		int[] count = new int[1];
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+				out.writeInt(MAGIC);
+				out.writeShort(VERSION);
+				out.writeLong(System.currentTimeMillis());
+				cache.forEachRecordUnordered(record -> {
+					if (!record.isStillValid())
+						return;
+					try {
+						writeRecord(out, record);
+						count[0]++;
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			}
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (UncheckedIOException e) {
+			Files.deleteIfExists(temporary);
+			throw e.getCause();
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+		return count[0];
+	}
+
+	/**
+	 * Adds the records of a snapshot file to the cache. Records that have expired since the
+	 * snapshot was written are skipped.
+	 *
+	 * @param cache Cache the records are added to.
+	 * @param path  Snapshot file.
+	 * @return The number of records added.
+	 * @throws IOException if the file could not be read, or is not a snapshot; records read before
+	 *                     an error in the middle of the file are still added
+	 */
+	public static int load(DNSCache cache, Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < 14 || buffer.getInt() != MAGIC)
+				throw new IOException(path + " is not a cache snapshot");
+			short version = buffer.getShort();
+			if (version != VERSION)
+				throw new IOException("Unsupported cache snapshot version " + version);
+			buffer.getLong();
+
+			long now = System.currentTimeMillis();
+			int count = 0;
+			try {
+				while (buffer.hasRemaining()) {
+					String hostName = readString(buffer);
+					RecordType type = RecordType.getByCode(buffer.getShort() & 0xFFFF);
+					long expirationTime = buffer.getLong();
+					long originalTTL = buffer.getInt() & 0xFFFFFFFFL;
+					byte kind = buffer.get();
+					if (kind == TEXT_RESULT) {
+						String text = readString(buffer);
+						if (expirationTime > now) {
+							cache.addResult(new ResourceRecord(new DNSNode(hostName, type), expirationTime, originalTTL, text, null));
+							count++;
+						}
+					} else if (kind == IPV4_RESULT || kind == IPV6_RESULT) {
+						byte[] address = new byte[kind == IPV4_RESULT ? 4 : 16];
+						buffer.get(address);
+						if (expirationTime > now) {
+							cache.addResult(new ResourceRecord(new DNSNode(hostName, type), expirationTime, originalTTL, null, address));
+							count++;
+						}
+					} else {
+						throw new IOException("Unknown record kind " + kind + " in cache snapshot");
+					}
+				}
+			} catch (BufferUnderflowException e) {
+				throw new EOFException("Cache snapshot ended in the middle of a record");
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the cache periodically, and once more when the JVM shuts down, after
+	 * the periodic snapshot in progress, if any, has completed. Failures are reported on the
+	 * standard error and do not stop later snapshots.
+	 *
+	 * @param cache         Cache whose records are saved.
+	 * @param path          File the snapshots are written to.
+	 * @param periodSeconds Time between two snapshots, in seconds.
+	 * @return The scheduler of the periodic snapshots, which runs on a daemon thread.
+	 */
+	public static ScheduledExecutorService schedule(DNSCache cache, Path path, long periodSeconds) {
+		Runnable snapshot = () -> {
+			try {
+				write(cache, path);
+			} catch (IOException e) {
+				System.err.println("Could not write cache snapshot (" + e.getMessage() + ").");
+			}
+		};
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "dns-cache-snapshot");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(snapshot, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			// Not shutdownNow: interrupting a write closes its file
+			scheduler.shutdown();
+			try {
+				scheduler.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			snapshot.run();
+		}, "dns-cache-snapshot-shutdown"));
+		return scheduler;
+	}
+
+	private static void writeRecord(DataOutputStream out, ResourceRecord record) throws IOException {
+		writeString(out, record.getHostName());
+		out.writeShort(record.getType().getCode());
+		out.writeLong(record.getExpirationTime());
+		out.writeInt((int) record.getOriginalTTL());
+		byte[] address = record.getAddressBytes();
+		if (address == null) {
+			out.writeByte(TEXT_RESULT);
+			writeString(out, record.getTextResult());
+		} else {
+			out.writeByte(address.length == 4 ? IPV4_RESULT : IPV6_RESULT);
+			out.write(address);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
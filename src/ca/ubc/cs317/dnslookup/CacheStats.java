@@ -0,0 +1,82 @@
+package ca.ubc.cs317.dnslookup;
+
+/**
+ * An immutable snapshot of the counters of a DNSCache.
+ */
+public class CacheStats {
+	private final long hitCount;
+	private final long missCount;
+	private final long evictionCount;
+	private final long admittedCount;
+	private final long rejectedCount;
+	private final long entryCount;
+	private final long byteSize;
+
+	public CacheStats(long hitCount, long missCount, long evictionCount, long admittedCount,
+					  long rejectedCount, long entryCount, long byteSize) {
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+		this.evictionCount = evictionCount;
+		this.admittedCount = admittedCount;
+		this.rejectedCount = rejectedCount;
+		this.entryCount = entryCount;
+		this.byteSize = byteSize;
+	}
+
+	/**
+	 * @return Number of lookups that found cached records.
+	 */
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * @return Number of lookups that found no cached records.
+	 */
+	public long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * @return Number of nodes removed to keep the cache within its limits.
+	 */
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * @return Number of nodes admitted from the window into the main area of the cache.
+	 */
+	public long getAdmittedCount() {
+		return admittedCount;
+	}
+
+	/**
+	 * @return Number of nodes refused by the main area because they were used less often than its victim.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * @return Number of records currently cached.
+	 */
+	public long getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * @return Approximate size of the cached records, in bytes.
+	 */
+	public long getByteSize() {
+		return byteSize;
+	}
+
+	@Override
+	public String toString() {
+		long lookups = hitCount + missCount;
+		return String.format("entries=%d bytes=%d hits=%d misses=%d hitRatio=%.3f evictions=%d admitted=%d rejected=%d",
+				entryCount, byteSize, hitCount, missCount, lookups == 0 ? 0.0 : (double) hitCount / lookups,
+				evictionCount, admittedCount, rejectedCount);
+	}
+}
@@ -1,7 +1,6 @@
 package ca.ubc.cs317.dnslookup;
 
-import java.io.DataInputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A class that represents the DNS answer
@@ -10,26 +9,26 @@ import java.io.IOException;
 public class DNSAnswer {
 	public String NAME;
 	public int TYPE, CLASS, TTL, RDLENGTH;
-	public byte[] RDATA;
+	// Absolute offset of the RDATA in the response, which is not copied
+	public int RDATAOffset;
 
 	public DNSAnswer() {
 
 	}
 
 	/**
-	 * Decodes the components of an answer
-	 * @param inputStream DataInputStream
-	 * @param responseBuffer byte[]
-	 * @throws IOException IOException
+	 * Decodes the components of an answer, and moves the buffer past its RDATA
+	 * @param buffer ByteBuffer positioned at the start of the answer
+	 * @param nameResolver NameResolver of the message
+	 * @throws MalformedResponseException if the name of the answer cannot be decoded
 	 */
-	public void decode(DataInputStream inputStream, byte[] responseBuffer) throws IOException {
-		NAME = NameResolver.getName(inputStream, responseBuffer);
-		NAME = NAME.substring(0, NAME.length() - 1);
-		TYPE = inputStream.readUnsignedShort();
-		CLASS = inputStream.readUnsignedShort();
-		TTL = inputStream.readInt();
-		RDLENGTH = inputStream.readShort();
-		RDATA = new byte[RDLENGTH];
-		inputStream.read(RDATA, 0, RDLENGTH);
+	public void decode(ByteBuffer buffer, NameResolver nameResolver) throws MalformedResponseException {
+		NAME = nameResolver.getName();
+		TYPE = buffer.getShort() & 0xFFFF;
+		CLASS = buffer.getShort() & 0xFFFF;
+		TTL = buffer.getInt();
+		RDLENGTH = buffer.getShort() & 0xFFFF;
+		RDATAOffset = buffer.position();
+		buffer.position(RDATAOffset + RDLENGTH);
 	}
 }
@@ -1,19 +1,126 @@
 package ca.ubc.cs317.dnslookup;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
  * to a set of resource records (results). Cached results are only maintained for the duration
  * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
  * the user.
+ *
+ * The cache may be used by many lookups at once. Nodes are kept in a concurrent hash map, and
+ * the few records of each node in an array that is replaced on every write, so reads never take
+ * a lock. Writes to the same node are serialized by the node's bin in the map, and writes to
+ * different nodes proceed in parallel. The records of a node share its DNSNode, and address
+ * records only hold the raw bytes of their address, so a record costs little more than its
+ * payload and expiration time.
+ *
+ * Expiration is tracked by a min-heap of records ordered by expiration time. Reads and writes
+ * only compare the clock against the earliest expiration; once it has passed, the caller
+ * removes the records that are due from the heap and from the map. A hit therefore costs a
+ * hash lookup and does not allocate.
+ *
+ * The cache is bounded both by a number of records and by their approximate size in bytes.
+ * Which nodes are kept once a limit is reached is decided by a CacheEvictionPolicy. The limits
+ * of the shared instance are read from the dnslookup.cache.maxEntries and
+ * dnslookup.cache.maxBytes system properties.
+ *
+ * Nodes that are read often can be refreshed before they expire. Once a node has been read a
+ * minimum number of times within the last fraction of the TTL of its earliest record, the next
+ * read calls the refresh handler, once, so the node can be resolved again in the background and
+ * the readers never see a miss. Reads before that refresh window do not count, and the count
+ * starts over with the refreshed records, so only nodes still in demand at the end of each TTL
+ * are refreshed. Only reads through getCachedResults, which answer clients, are counted; the
+ * resolver reads the nodes it needs along the way through peekCachedResults. The handler is
+ * typically set by the Resolver using the cache.
+ *
+ * Expired records are not dropped at once: they are kept, apart from the fresh ones, for a
+ * stale window (one day by default), as described in RFC 8767. They are never returned by
+ * getCachedResults, but getStaleResults may serve them, with a short TTL, when the servers
+ * of a node fail or are too slow to answer. A node's stale records are dropped as soon as a
+ * fresh record is added for it. The limits of the cache cover the stale records too: they are
+ * kept within an eighth of the entries and bytes, the oldest dropped first, and the fresh
+ * records within the rest.
+ *
+ * Negative answers are cached as described in RFC 2308: a name error (NXDOMAIN) for the name,
+ * whatever the record type, and an empty answer (NODATA) for the node only, each for the TTL
+ * given by the SOA record of the answer. They are kept apart from the records, and checked
+ * with isNegative.
  */
 public class DNSCache {
 
-    private static DNSCache instance = new DNSCache();
+    public static final long DEFAULT_MAXIMUM_ENTRIES = 1_000_000;
+    public static final long DEFAULT_MAXIMUM_BYTES = 256L * 1024 * 1024;
+    public static final double DEFAULT_REFRESH_AHEAD_FRACTION = 0.1;
+    public static final int DEFAULT_REFRESH_MINIMUM_HITS = 3;
+    public static final long DEFAULT_STALE_WINDOW_MILLIS = 24L * 60 * 60 * 1000;
+    // RFC 8767 recommends 30 seconds for records served stale
+    public static final int STALE_TTL_SECONDS = 30;
 
+    private static final DNSCache instance = new DNSCache(
+            Long.getLong("dnslookup.cache.maxEntries", DEFAULT_MAXIMUM_ENTRIES),
+            Long.getLong("dnslookup.cache.maxBytes", DEFAULT_MAXIMUM_BYTES));
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    // Rough per-record overhead of the record, its slot in its node and in the expiration heap
+    private static final int RECORD_OVERHEAD_BYTES = 56;
+    // Rough overhead of a String and its byte array, whose content takes one byte per character
+    private static final int STRING_OVERHEAD_BYTES = 40;
+    // Rough overhead of a byte array holding an address
+    private static final int ADDRESS_OVERHEAD_BYTES = 16;
+    // Stale records are kept within this fraction of the limits of the cache
+    private static final int STALE_SHARE_DIVISOR = 8;
+    // A full map of negative answers evicts this fraction of them, those that expire first
+    private static final int NEGATIVE_EVICTION_DIVISOR = 16;
+
+    private final ConcurrentHashMap<DNSNode, CachedNode> cachedResults = new ConcurrentHashMap<>();
+    private final PriorityQueue<ResourceRecord> expirationQueue =
+            new PriorityQueue<>(Comparator.comparingLong(ResourceRecord::getExpirationTime));
+    private final ReentrantLock expirationLock = new ReentrantLock();
+    private volatile long nextExpiration = Long.MAX_VALUE;
+    // Heap entries whose record has been replaced or evicted, and which are skipped when they expire
+    private final AtomicInteger obsoleteExpirations = new AtomicInteger();
+    private final CacheEvictionPolicy policy;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private volatile double refreshAheadFraction = DEFAULT_REFRESH_AHEAD_FRACTION;
+    private volatile int refreshMinimumHits = DEFAULT_REFRESH_MINIMUM_HITS;
+    private final AtomicReference<Consumer<DNSNode>> refreshHandler = new AtomicReference<>();
+    private final ConcurrentHashMap<DNSNode, Map<ResourceRecord, ResourceRecord>> staleResults = new ConcurrentHashMap<>();
+    // Stale records in the order they expired, which is also the order they leave the stale window; guarded by expirationLock
+    private final ArrayDeque<ResourceRecord> staleQueue = new ArrayDeque<>();
+    // Number and weight of the records in staleResults, which the queue may outnumber
+    private final AtomicLong staleEntries = new AtomicLong();
+    private final AtomicLong staleBytes = new AtomicLong();
+    // Queue entries whose record has been dropped by a fresh record, and which are skipped when they leave the window
+    private final AtomicInteger obsoleteStale = new AtomicInteger();
+    private final long maximumStaleEntries;
+    private final long maximumStaleBytes;
+    private volatile long staleWindow = DEFAULT_STALE_WINDOW_MILLIS;
+    // Expiration times of negative answers, by lower case name for name errors and by node for NODATA
+    private final ConcurrentHashMap<String, Long> nameErrors = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<DNSNode, Long> noDataResults = new ConcurrentHashMap<>();
+    private final long maximumNegativeEntries;
+
+    /** Creates a cache bounded by the given limits. Most callers should use the shared instance
+     * returned by getInstance instead.
+     *
+     * @param maximumEntries Maximum number of records held by the cache.
+     * @param maximumBytes   Maximum approximate size of the cached records, in bytes.
+     */
+    public DNSCache(long maximumEntries, long maximumBytes) {
+        maximumStaleEntries = maximumEntries / STALE_SHARE_DIVISOR;
+        maximumStaleBytes = maximumBytes / STALE_SHARE_DIVISOR;
+        policy = new CacheEvictionPolicy(maximumEntries - maximumStaleEntries, maximumBytes - maximumStaleBytes, this::evict);
+        maximumNegativeEntries = maximumEntries;
+    }
 
     /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
      * method returns the single DNS cache instance.
@@ -33,12 +140,183 @@ public class DNSCache {
      * @return A potentially empty set of resources associated to the query.
      */
     public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
+        removeExpired();
+        CachedNode results = cachedResults.get(node);
+        if (results == null) {
+            missCount.increment();
+            return Collections.emptySet();
+        }
+
+        hitCount.increment();
+        policy.recordRead(node);
+        recordHit(node, results);
+        return results.view;
+    }
+
+    /** Returns the records cached for a node, as getCachedResults does, without counting the
+     * read as a hit or a miss, nor towards refreshing the node. Meant for the reads a resolver
+     * makes on its own behalf while resolving a lookup, such as the addresses of nameservers or
+     * the links of a CNAME chain, which would otherwise count several times per client lookup.
+     * The read still counts for the eviction policy, as the records are in use.
+     *
+     * @param node DNS query (host name and record type) to obtain cached results.
+     * @return A potentially empty set of resources associated to the query.
+     */
+    Set<ResourceRecord> peekCachedResults(DNSNode node) {
+        removeExpired();
+        CachedNode results = cachedResults.get(node);
         if (results == null)
             return Collections.emptySet();
+        policy.recordRead(node);
+        return results.view;
+    }
 
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
+    /** Caches a negative answer for a node.
+     *
+     * @param node      DNS query (host name and record type) that had a negative answer.
+     * @param nameError true if the name does not exist at all (NXDOMAIN), false if it has no
+     *                  records of the type of the node (NODATA).
+     * @param ttl       Number of seconds the answer may be cached for.
+     */
+    public void addNegativeResult(DNSNode node, boolean nameError, long ttl) {
+        if (ttl <= 0)
+            return;
+        long expirationTime = System.currentTimeMillis() + ttl * 1000;
+        if (nameError)
+            putNegative(nameErrors, node.getHostName().toLowerCase(Locale.ROOT), expirationTime);
+        else
+            putNegative(noDataResults, node, expirationTime);
+    }
+
+    /** Returns true if a negative answer that covers the node is cached: a name error for its
+     * name, or an empty answer for the node itself.
+     *
+     * @param node DNS query (host name and record type) to check.
+     * @return true if the node is known not to have any records.
+     */
+    public boolean isNegative(DNSNode node) {
+        long now = System.currentTimeMillis();
+        if (!noDataResults.isEmpty() && isUnexpired(noDataResults, node, now))
+            return true;
+        return isNameError(node.getHostName());
+    }
+
+    /** Returns true if a name error is cached for a host name, that is, if the name is known
+     * not to exist at all.
+     *
+     * @param hostName Host name to check.
+     * @return true if the name is known not to exist.
+     */
+    public boolean isNameError(String hostName) {
+        return !nameErrors.isEmpty() && isUnexpired(nameErrors, hostName.toLowerCase(Locale.ROOT), System.currentTimeMillis());
+    }
+
+    /** Caches a negative answer. Once the map is full, the expired answers are dropped, and if
+     * that is not enough, the NEGATIVE_EVICTION_DIVISOR-th of the answers that expire first, so
+     * a burst of negative answers cannot wipe the others out, and the sort is not done on every
+     * insertion.
+     */
+    private <K> void putNegative(Map<K, Long> negatives, K key, long expirationTime) {
+        if (negatives.size() >= maximumNegativeEntries) {
+            long now = System.currentTimeMillis();
+            negatives.values().removeIf(expiration -> expiration <= now);
+            if (negatives.size() >= maximumNegativeEntries) {
+                long[] expirations = negatives.values().stream().mapToLong(Long::longValue).sorted().toArray();
+                if (expirations.length > 0) {
+                    int evicted = Math.max(1, expirations.length / NEGATIVE_EVICTION_DIVISOR);
+                    long cutoff = expirations[evicted - 1];
+                    negatives.values().removeIf(expiration -> expiration <= cutoff);
+                }
+            }
+        }
+        negatives.put(key, expirationTime);
+    }
+
+    private static <K> boolean isUnexpired(Map<K, Long> negatives, K key, long now) {
+        Long expirationTime = negatives.get(key);
+        if (expirationTime == null)
+            return false;
+        if (expirationTime > now)
+            return true;
+        negatives.remove(key, expirationTime);
+        return false;
+    }
+
+    /** Returns the records of a node that have expired within the stale window, as copies
+     * with a TTL of STALE_TTL_SECONDS. This method is meant for when the node could not be
+     * resolved in time; it does not look at fresh records.
+     *
+     * @param node DNS query (host name and record type) to obtain stale results.
+     * @return A potentially empty set of stale resources associated to the query.
+     */
+    public Set<ResourceRecord> getStaleResults(DNSNode node) {
+        Map<ResourceRecord, ResourceRecord> stale = staleResults.get(node);
+        if (stale == null)
+            return Collections.emptySet();
+        long oldest = System.currentTimeMillis() - staleWindow;
+        Set<ResourceRecord> results = new HashSet<>();
+        for (ResourceRecord record : stale.values()) {
+            if (record.getExpirationTime() > oldest) {
+                results.add(new ResourceRecord(record.getNode(), System.currentTimeMillis() + STALE_TTL_SECONDS * 1000L,
+                        STALE_TTL_SECONDS, record.getAddressBytes() == null ? record.getTextResult() : null, record.getAddressBytes()));
+            }
+        }
+        return results;
+    }
+
+    /** Sets how long expired records are kept to be served stale. Zero disables serving stale.
+     *
+     * @param staleWindow Time after their expiration during which records may still be served, in milliseconds.
+     */
+    public void setStaleWindow(long staleWindow) {
+        this.staleWindow = staleWindow;
+    }
+
+    /** Sets when nodes are refreshed ahead of their expiration. Only records added afterwards
+     * are affected.
+     *
+     * @param fraction    Fraction of the TTL, at the end of it, during which a read triggers a
+     *                    refresh. Zero disables refreshing.
+     * @param minimumHits Number of reads within the refresh window a node needs before it is
+     *                    refreshed.
+     */
+    public void setRefreshAhead(double fraction, int minimumHits) {
+        this.refreshAheadFraction = fraction;
+        this.refreshMinimumHits = minimumHits;
+    }
+
+    /** Sets the action that refreshes a node. It is called on the reading thread, so it should
+     * only start the refresh. New records for the node are then added as usual.
+     *
+     * @param handler Action to be performed for a node due for refresh, or null for none.
+     */
+    public void setRefreshHandler(Consumer<DNSNode> handler) {
+        refreshHandler.set(handler);
+    }
+
+    /** Removes the refresh handler, if it is still the given one. A handler set since then, for
+     * example by another resolver sharing the cache, is left in place.
+     *
+     * @param handler Action that was set with setRefreshHandler.
+     */
+    public void removeRefreshHandler(Consumer<DNSNode> handler) {
+        refreshHandler.compareAndSet(handler, null);
+    }
+
+    /** Counts a read of a node within its refresh window, and calls the refresh handler once
+     * the node has had the minimum number of such reads. The count stops at the minimum number
+     * of hits, so reads of a hot node only read it.
+     */
+    private void recordHit(DNSNode node, CachedNode results) {
+        Consumer<DNSNode> handler = refreshHandler.get();
+        if (handler == null || System.currentTimeMillis() < results.refreshTime)
+            return;
+        if (results.hits.get() < refreshMinimumHits) {
+            results.hits.incrementAndGet();
+            return;
+        }
+        if (results.refreshing.compareAndSet(false, true))
+            handler.accept(node);
     }
 
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
@@ -52,28 +330,65 @@ public class DNSCache {
 
         if (!record.isStillValid()) return;
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
+        ResourceRecord[] replaced = new ResourceRecord[1];
+        boolean[] stored = new boolean[1];
+        cachedResults.compute(record.getNode(), (node, cached) -> {
+            if (cached == null)
+                cached = new CachedNode(node);
+            replaced[0] = cached.get(record);
+            if (replaced[0] == null || replaced[0].expiresBefore(record)) {
+                record.shareNode(cached.node);
+                cached.put(record);
+                cached.updateRefreshTime(refreshAheadFraction);
+                stored[0] = true;
+            }
+            return cached;
+        });
+        if (!stored[0])
+            return;
+        if (!staleResults.isEmpty())
+            dropStale(record.getNode());
+        if (!noDataResults.isEmpty())
+            noDataResults.remove(record.getNode());
+        if (!nameErrors.isEmpty())
+            nameErrors.remove(record.getHostName().toLowerCase(Locale.ROOT));
+
+        expirationLock.lock();
+        try {
+            expirationQueue.add(record);
+            nextExpiration = expirationQueue.peek().getExpirationTime();
+        } finally {
+            expirationLock.unlock();
         }
+        if (replaced[0] == null)
+            policy.recordWrite(record.getNode(), 1, weigh(record));
+        else
+            compactExpirations(obsoleteExpirations.incrementAndGet());
+        removeExpired();
+    }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+    /** Returns a snapshot of the hit, miss, eviction and admission counters of this cache, and
+     * of its current size.
+     *
+     * @return CacheStats
+     */
+    public CacheStats getStats() {
+        return policy.stats(hitCount.sum(), missCount.sum());
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
      * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * the action is performed. Nodes are visited in order over a snapshot of the keys, so other
+     * threads may keep using the cache while it is being dumped.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
+        removeExpired();
+        for (DNSNode node : sortedNodes()) {
+            CachedNode results = cachedResults.get(node);
+            if (results != null && !results.isEmpty())
+                consumer.accept(node, results.view);
         }
     }
 
@@ -84,10 +399,297 @@ public class DNSCache {
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
+        removeExpired();
+        for (DNSNode node : sortedNodes()) {
+            CachedNode results = cachedResults.get(node);
+            if (results != null)
+                results.view.forEach(record -> consumer.accept(node, record));
         }
     }
 
-}
\ No newline at end of file
+    /** Performs an action for every cached record, in no particular order and without taking a
+     * snapshot of the keys first. Used to write cache snapshots.
+     *
+     * @param consumer Action to be performed for each record.
+     */
+    void forEachRecordUnordered(Consumer<ResourceRecord> consumer) {
+        for (CachedNode results : cachedResults.values())
+            results.view.forEach(consumer);
+    }
+
+    /** Removes every record whose expiration time has passed. This is a single volatile read
+     * unless the earliest expiration in the cache is due.
+     */
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        if (now < nextExpiration)
+            return;
+
+        expirationLock.lock();
+        try {
+            ResourceRecord record;
+            while ((record = expirationQueue.peek()) != null && record.getExpirationTime() <= now) {
+                expirationQueue.poll();
+                if (remove(record)) {
+                    policy.recordWrite(record.getNode(), -1, -weigh(record));
+                    addStale(record);
+                } else {
+                    obsoleteExpirations.decrementAndGet();
+                }
+            }
+            nextExpiration = record == null ? Long.MAX_VALUE : record.getExpirationTime();
+            removeStale(now);
+        } finally {
+            expirationLock.unlock();
+        }
+    }
+
+    /** Keeps an expired record to be served stale. Called with expirationLock held.
+     */
+    private void addStale(ResourceRecord record) {
+        if (staleWindow <= 0)
+            return;
+        ResourceRecord previous = staleResults.computeIfAbsent(record.getNode(), node -> new ConcurrentHashMap<>())
+                .put(record, record);
+        staleQueue.add(record);
+        staleEntries.incrementAndGet();
+        staleBytes.addAndGet(weigh(record));
+        if (previous != null) {
+            staleEntries.decrementAndGet();
+            staleBytes.addAndGet(-weigh(previous));
+            obsoleteStale.incrementAndGet();
+        }
+    }
+
+    /** Drops stale records that have left the stale window, and the oldest ones beyond the
+     * stale share of the limits. Called with expirationLock held.
+     */
+    private void removeStale(long now) {
+        ResourceRecord record;
+        while ((record = staleQueue.peek()) != null
+                && (record.getExpirationTime() + staleWindow <= now
+                    || staleEntries.get() > maximumStaleEntries || staleBytes.get() > maximumStaleBytes)) {
+            staleQueue.poll();
+            ResourceRecord expired = record;
+            boolean[] removed = new boolean[1];
+            staleResults.computeIfPresent(record.getNode(), (node, stale) -> {
+                stale.computeIfPresent(expired, (key, current) -> {
+                    removed[0] = current == expired;
+                    return removed[0] ? null : current;
+                });
+                return stale.isEmpty() ? null : stale;
+            });
+            if (removed[0]) {
+                staleEntries.decrementAndGet();
+                staleBytes.addAndGet(-weigh(expired));
+            } else {
+                obsoleteStale.decrementAndGet();
+            }
+        }
+        if (obsoleteStale.get() > staleQueue.size() / 2) {
+            staleQueue.removeIf(stale -> !isStale(stale));
+            obsoleteStale.set(0);
+        }
+    }
+
+    /** Drops the stale records of a node, once a fresh record has been added for it. Their
+     * entries stay in the stale queue, as obsolete, until they are skipped or compacted away.
+     */
+    private void dropStale(DNSNode node) {
+        Map<ResourceRecord, ResourceRecord> stale = staleResults.remove(node);
+        if (stale == null)
+            return;
+        for (ResourceRecord record : stale.values()) {
+            staleEntries.decrementAndGet();
+            staleBytes.addAndGet(-weigh(record));
+            obsoleteStale.incrementAndGet();
+        }
+    }
+
+    private boolean isStale(ResourceRecord record) {
+        Map<ResourceRecord, ResourceRecord> stale = staleResults.get(record.getNode());
+        return stale != null && stale.get(record) == record;
+    }
+
+    /** Removes a record from its node, unless it has since been replaced by a longer-lived copy.
+     * The node itself is removed once it has no records left.
+     *
+     * @return true if the record was still cached and has been removed.
+     */
+    private boolean remove(ResourceRecord record) {
+        boolean[] removed = new boolean[1];
+        cachedResults.computeIfPresent(record.getNode(), (node, cached) -> {
+            removed[0] = cached.removeIdentical(record);
+            if (cached.isEmpty())
+                return null;
+            if (removed[0])
+                cached.updateRefreshTime(refreshAheadFraction);
+            return cached;
+        });
+        return removed[0];
+    }
+
+    /** Removes a node chosen by the eviction policy. Its records stay in the expiration heap
+     * until they expire or the heap is compacted.
+     */
+    private void evict(DNSNode node) {
+        CachedNode evicted = cachedResults.remove(node);
+        if (evicted == null)
+            return;
+        compactExpirations(obsoleteExpirations.addAndGet(evicted.size()));
+    }
+
+    /** Rebuilds the expiration heap without its obsolete entries once they make up more than
+     * half of it. Records that are replaced over and over, such as the NS and glue records of
+     * every referral, would otherwise fill the heap with entries of records no longer cached,
+     * for as long as their TTL. Skipped if another thread holds the heap, as the next replaced
+     * or evicted record tries again.
+     *
+     * @param obsolete Number of obsolete entries in the heap.
+     */
+    private void compactExpirations(int obsolete) {
+        if (obsolete > expirationQueue.size() / 2 && expirationLock.tryLock()) {
+            try {
+                expirationQueue.removeIf(record -> !isCached(record));
+                obsoleteExpirations.set(0);
+                ResourceRecord first = expirationQueue.peek();
+                nextExpiration = first == null ? Long.MAX_VALUE : first.getExpirationTime();
+            } finally {
+                expirationLock.unlock();
+            }
+        }
+    }
+
+    private boolean isCached(ResourceRecord record) {
+        CachedNode cached = cachedResults.get(record.getNode());
+        return cached != null && cached.get(record) == record;
+    }
+
+    /** Approximate number of bytes used by a cached record.
+     */
+    private static long weigh(ResourceRecord record) {
+        // The host name is shared by the records of a node, but counted for each of them so the
+        // weight of a record does not depend on the order records are added in
+        long size = RECORD_OVERHEAD_BYTES + STRING_OVERHEAD_BYTES + record.getHostName().length();
+        byte[] address = record.getAddressBytes();
+        if (address != null)
+            return size + ADDRESS_OVERHEAD_BYTES + address.length;
+        return size + STRING_OVERHEAD_BYTES + record.getTextResult().length();
+    }
+
+    private List<DNSNode> sortedNodes() {
+        List<DNSNode> nodes = new ArrayList<>(cachedResults.keySet());
+        Collections.sort(nodes);
+        return nodes;
+    }
+
+    /** Records cached for a single node. A node rarely has more than a handful of records, so
+     * they are kept in an array, searched linearly. Writes are made under the bin lock of the
+     * node, and replace the array, so readers see a consistent set of records without locking.
+     * The records share the node the array was created for.
+     *
+     * The refresh time is the earliest time at which one of the records enters its refresh
+     * window. Once a refresh has been started it is not started again until the refresh time
+     * moves forward, that is, until the refresh has replaced the earliest record.
+     */
+    private static final class CachedNode {
+        private static final ResourceRecord[] EMPTY = new ResourceRecord[0];
+
+        final DNSNode node;
+        volatile ResourceRecord[] records = EMPTY;
+        final AtomicInteger hits = new AtomicInteger();
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        volatile long refreshTime = Long.MAX_VALUE;
+
+        CachedNode(DNSNode node) {
+            this.node = node;
+        }
+
+        /** Returns the cached record equal to a record, or null if there is none.
+         */
+        ResourceRecord get(Object record) {
+            for (ResourceRecord cached : records) {
+                if (cached.equals(record))
+                    return cached;
+            }
+            return null;
+        }
+
+        /** Adds a record, replacing the equal one if any. Called under the bin lock of the node.
+         */
+        void put(ResourceRecord record) {
+            ResourceRecord[] current = records;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].equals(record)) {
+                    ResourceRecord[] updated = current.clone();
+                    updated[i] = record;
+                    records = updated;
+                    return;
+                }
+            }
+            ResourceRecord[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = record;
+            records = updated;
+        }
+
+        /** Removes a record, unless it has been replaced by another equal one. Called under the
+         * bin lock of the node.
+         *
+         * @return true if the record was found and removed.
+         */
+        boolean removeIdentical(ResourceRecord record) {
+            ResourceRecord[] current = records;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == record) {
+                    ResourceRecord[] updated = new ResourceRecord[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, updated.length - i);
+                    records = updated.length == 0 ? EMPTY : updated;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int size() {
+            return records.length;
+        }
+
+        boolean isEmpty() {
+            return records.length == 0;
+        }
+
+        /** Recomputes the refresh time. Called under the bin lock of the node.
+         */
+        void updateRefreshTime(double fraction) {
+            long earliest = Long.MAX_VALUE;
+            if (fraction > 0) {
+                for (ResourceRecord record : records)
+                    earliest = Math.min(earliest, record.getExpirationTime() - (long) (record.getOriginalTTL() * 1000 * fraction));
+            }
+            if (earliest > refreshTime) {
+                hits.set(0);
+                refreshing.set(false);
+            }
+            refreshTime = earliest;
+        }
+
+        final Set<ResourceRecord> view = new AbstractSet<>() {
+            @Override
+            public Iterator<ResourceRecord> iterator() {
+                return Collections.unmodifiableList(Arrays.asList(records)).iterator();
+            }
+
+            @Override
+            public int size() {
+                return records.length;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return get(o) != null;
+            }
+        };
+    }
+
+}
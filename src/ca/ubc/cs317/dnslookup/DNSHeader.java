@@ -1,8 +1,6 @@
 package ca.ubc.cs317.dnslookup;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * This class represents the header for DNS query or DNS reply
@@ -32,18 +30,25 @@ public class DNSHeader {
 
 	/**
 	 * Decode DNS response
-	 * @param dataInputStream DataInputStream
+	 * @param buffer ByteBuffer positioned at the start of the header
 	 * @param transactionID transactionID
-	 * @throws IOException IOException
 	 * @throws MissedResponseException MissedResponseException
 	 */
-	public void decode(DataInputStream dataInputStream, int transactionID)
-			throws IOException, MissedResponseException {
-		this.ID = dataInputStream.readUnsignedShort();
+	public void decode(ByteBuffer buffer, int transactionID) throws MissedResponseException {
+		this.ID = buffer.getShort(buffer.position()) & 0xFFFF;
 		if (ID != transactionID) {
 			throw new MissedResponseException();
 		}
-		int bits = dataInputStream.readUnsignedShort();
+		decode(buffer);
+	}
+
+	/**
+	 * Decode a DNS message header, whatever its ID, such as the header of a query received by the server
+	 * @param buffer ByteBuffer positioned at the start of the header
+	 */
+	public void decode(ByteBuffer buffer) {
+		this.ID = buffer.getShort() & 0xFFFF;
+		int bits = buffer.getShort() & 0xFFFF;
 		QR = (bits >>> 15) & 0b1;
 		Opcode = (bits >>> 11) & 0b1111;
 		AA = (bits >>> 10) & 0b1;
@@ -52,25 +57,24 @@ public class DNSHeader {
 		RA = (bits >>> 7) & 0b1;
 		Z = (bits >>> 4) & 0b111;
 		RCODE = bits & 0b1111;
-		QDCOUNT = dataInputStream.readUnsignedShort();
-		ANCOUNT = dataInputStream.readUnsignedShort();
-		NSCOUNT = dataInputStream.readUnsignedShort();
-		ARCOUNT = dataInputStream.readUnsignedShort();
+		QDCOUNT = buffer.getShort() & 0xFFFF;
+		ANCOUNT = buffer.getShort() & 0xFFFF;
+		NSCOUNT = buffer.getShort() & 0xFFFF;
+		ARCOUNT = buffer.getShort() & 0xFFFF;
 	}
 
 	/**
 	 * Encode the query
-	 * @param outputStream DataOutputStream
-	 * @throws IOException IOException
+	 * @param buffer ByteBuffer the header is written to, at its position
 	 */
-	public void encode(DataOutputStream outputStream) throws IOException {
-		outputStream.writeShort(this.ID);
-		outputStream.writeShort((QR << 15) + (Opcode << 11) +
-				(AA << 10) + (TC << 9) + (RD << 8) + (RA << 7) + (Z << 4) + RCODE);
-		outputStream.writeShort(QDCOUNT);
-		outputStream.writeShort(ANCOUNT);
-		outputStream.writeShort(NSCOUNT);
-		outputStream.writeShort(ARCOUNT);
+	public void encode(ByteBuffer buffer) {
+		buffer.putShort((short) this.ID);
+		buffer.putShort((short) ((QR << 15) + (Opcode << 11) +
+				(AA << 10) + (TC << 9) + (RD << 8) + (RA << 7) + (Z << 4) + RCODE));
+		buffer.putShort((short) QDCOUNT);
+		buffer.putShort((short) ANCOUNT);
+		buffer.putShort((short) NSCOUNT);
+		buffer.putShort((short) ARCOUNT);
 	}
 
 	/**
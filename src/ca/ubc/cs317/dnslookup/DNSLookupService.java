@@ -1,20 +1,35 @@
 package ca.ubc.cs317.dnslookup;
 
+import java.io.BufferedReader;
 import java.io.Console;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.InetAddress;
-import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class DNSLookupService {
 
 	private static boolean p1Flag = false; // isolating part 1
-	private static final int MAX_INDIRECTION_LEVEL = 10;
-	private static final int QUERY_RESEND_MAX_ATTEMPTS = 10;
-	private static InetAddress rootServer;
+	private static final int DEFAULT_BATCH_CONCURRENCY = 256;
+	private static final int DEFAULT_SERVER_PORT = 53;
+	private static final int UDP_CHANNEL_COUNT = 4;
+	private static final String SNAPSHOT_PROPERTY = "dnslookup.cache.snapshot";
+	private static final String SNAPSHOT_PERIOD_PROPERTY = "dnslookup.cache.snapshotPeriodSeconds";
+	private static final long DEFAULT_SNAPSHOT_PERIOD_SECONDS = 300;
+	private static final String TCP_ONLY_PROPERTY = "dnslookup.tcpOnly";
+	private static final String REFRESH_AHEAD_FRACTION_PROPERTY = "dnslookup.cache.refreshAheadFraction";
+	private static final String REFRESH_MINIMUM_HITS_PROPERTY = "dnslookup.cache.refreshMinimumHits";
+	private static final String STALE_WINDOW_PROPERTY = "dnslookup.cache.staleWindowSeconds";
 	private static DNSCache cache = DNSCache.getInstance();
-	public static DNSDataHolder dnsDataHolder = new DNSDataHolder(0);
+	private static DNSTransport transport;
+	private static Resolver resolver;
 
 	/**
 	 * Main function, called when program is first invoked.
@@ -22,15 +37,41 @@ public class DNSLookupService {
 	 * @param args list of arguments specified in the command line.
 	 */
 	public static void main(String[] args) {
+		String batchFile = null;
+		int batchConcurrency = DEFAULT_BATCH_CONCURRENCY;
+		int serverPort = -1;
+		int serverWorkers = DNSServer.DEFAULT_WORKER_COUNT;
+		String serverAddress = null;
 		if (args.length == 2 && args[1].equals("-p1")) {
 			p1Flag = true;
+		} else if ((args.length == 3 || args.length == 4) && args[1].equals("-batch")) {
+			batchFile = args[2];
+			if (args.length == 4)
+				batchConcurrency = parseNumber(args[3]);
+		} else if (args.length >= 2 && args.length <= 5 && args[1].equals("-server")) {
+			serverPort = args.length >= 3 ? parseNumber(args[2]) : DEFAULT_SERVER_PORT;
+			if (args.length >= 4)
+				serverWorkers = parseNumber(args[3]);
+			if (args.length == 5)
+				serverAddress = args[4];
+			if (serverPort < 0 || serverPort > 0xFFFF || serverWorkers <= 0)
+				serverPort = 0;
 		} else if (args.length != 1) {
+			batchConcurrency = 0;
+		}
+		if (batchConcurrency <= 0 || serverPort == 0) {
 			System.err.println("Invalid call. Usage:");
 			System.err.println("\tjava -jar DNSLookupService.jar rootServer");
+			System.err.println("\tjava -jar DNSLookupService.jar rootServer -batch file|- [concurrency]");
+			System.err.println("\tjava -jar DNSLookupService.jar rootServer -server [port [workers [address]]]");
 			System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+			System.err.println("In batch mode, the lookups listed in the file (or standard input if -) are resolved and the program exits.");
+			System.err.println("In server mode, queries received on the UDP port (" + DEFAULT_SERVER_PORT + " by default) are answered until the program is stopped.");
+			System.err.println("The server listens on the loopback address unless given another address, such as 0.0.0.0 for all of them.");
 			System.exit(1);
 		}
 
+		InetAddress rootServer = null;
 		try {
 			rootServer = InetAddress.getByName(args[0]);
 			System.out.println("Root DNS server is: " + rootServer.getHostAddress());
@@ -38,13 +79,50 @@ public class DNSLookupService {
 			System.err.println("Invalid root server (" + e.getMessage() + ").");
 			System.exit(1);
 		}
+		InetAddress bindAddress = InetAddress.getLoopbackAddress();
+		if (serverAddress != null) {
+			try {
+				bindAddress = InetAddress.getByName(serverAddress);
+			} catch (UnknownHostException e) {
+				System.err.println("Invalid server address (" + e.getMessage() + ").");
+				System.exit(1);
+			}
+		}
 
 		try {
-			DNSQueryHandler.openSocket();
-		} catch (SocketException ex) {
+			transport = new UDPTransport(UDP_CHANNEL_COUNT);
+		} catch (IOException ex) {
 			ex.printStackTrace();
 			System.exit(1);
 		}
+		ResolverConfig config = new ResolverConfig(rootServer);
+		config.setTcpOnly(Boolean.getBoolean(TCP_ONLY_PROPERTY));
+		config.setRefreshAhead(doubleProperty(REFRESH_AHEAD_FRACTION_PROPERTY, DNSCache.DEFAULT_REFRESH_AHEAD_FRACTION),
+				Integer.getInteger(REFRESH_MINIMUM_HITS_PROPERTY, DNSCache.DEFAULT_REFRESH_MINIMUM_HITS));
+		config.setStaleWindowMillis(TimeUnit.SECONDS.toMillis(Long.getLong(STALE_WINDOW_PROPERTY,
+				TimeUnit.MILLISECONDS.toSeconds(DNSCache.DEFAULT_STALE_WINDOW_MILLIS))));
+		resolver = new Resolver(config, cache, transport);
+		startCacheSnapshots();
+
+		if (serverPort > 0) {
+			runServer(bindAddress, serverPort, serverWorkers);
+			resolver.close();
+			transport.close();
+			return;
+		}
+
+		if (batchFile != null) {
+			try (BufferedReader reader = batchFile.equals("-")
+					? new BufferedReader(new InputStreamReader(System.in))
+					: new BufferedReader(new FileReader(batchFile))) {
+				runBatch(reader, batchConcurrency);
+			} catch (IOException e) {
+				System.err.println("Could not read batch file (" + e.getMessage() + ").");
+			}
+			resolver.close();
+			transport.close();
+			return;
+		}
 
 		Scanner in = new Scanner(System.in);
 		Console console = System.console();
@@ -79,8 +157,8 @@ public class DNSLookupService {
 				// SERVER: Change root nameserver
 				if (commandArgs.length == 2) {
 					try {
-						rootServer = InetAddress.getByName(commandArgs[1]);
-						System.out.println("Root DNS server is now: " + rootServer.getHostAddress());
+						resolver.setRootServer(InetAddress.getByName(commandArgs[1]));
+						System.out.println("Root DNS server is now: " + resolver.getRootServer().getHostAddress());
 					} catch (UnknownHostException e) {
 						System.out.println("Invalid root server (" + e.getMessage() + ").");
 					}
@@ -93,9 +171,9 @@ public class DNSLookupService {
 					boolean verboseTracing = false;
 					if (commandArgs[1].equalsIgnoreCase("on")) {
 						verboseTracing = true;
-						DNSQueryHandler.setVerboseTracing(true);
+						resolver.setVerboseTracing(true);
 					} else if (commandArgs[1].equalsIgnoreCase("off")) {
-						DNSQueryHandler.setVerboseTracing(false);
+						resolver.setVerboseTracing(false);
 					} else {
 						System.err.println("Invalid call. Format:\n\ttrace on|off");
 						continue;
@@ -120,202 +198,169 @@ public class DNSLookupService {
 					System.err.println("Invalid call. Format:\n\tlookup hostName [type]");
 					continue;
 				}
+				try {
+					DNSQuery.checkName(commandArgs[1]);
+				} catch (IllegalArgumentException ex) {
+					System.err.println("Invalid host name (" + ex.getMessage() + ").");
+					continue;
+				}
 				findAndPrintResults(commandArgs[1], type);
+			} else if (commandArgs[0].equalsIgnoreCase("batch")) {
+				// BATCH: Resolve all lookups listed in a file concurrently
+				int concurrency = DEFAULT_BATCH_CONCURRENCY;
+				if (commandArgs.length == 3)
+					concurrency = parseNumber(commandArgs[2]);
+				if ((commandArgs.length != 2 && commandArgs.length != 3) || concurrency <= 0) {
+					System.err.println("Invalid call. Format:\n\tbatch file [concurrency]");
+					continue;
+				}
+				try (BufferedReader reader = new BufferedReader(new FileReader(commandArgs[1]))) {
+					runBatch(reader, concurrency);
+				} catch (IOException e) {
+					System.err.println("Could not read batch file (" + e.getMessage() + ").");
+				}
 			} else if (commandArgs[0].equalsIgnoreCase("dump")) {
 				// DUMP: Print all results still cached
 				cache.forEachNode(DNSLookupService::printResults);
+			} else if (commandArgs[0].equalsIgnoreCase("stats")) {
+				// STATS: Print cache size, hit and eviction counters
+				System.out.println(cache.getStats());
 			} else {
 				System.err.println("Invalid command. Valid commands are:");
 				System.err.println("\tlookup fqdn [type]");
+				System.err.println("\tbatch file [concurrency]");
 				System.err.println("\ttrace on|off");
 				System.err.println("\tserver IP");
 				System.err.println("\tdump");
+				System.err.println("\tstats");
 				System.err.println("\tquit");
 			}
 
 		} while (true);
 
-		DNSQueryHandler.closeSocket();
+		resolver.close();
+		transport.close();
 		System.out.println("Goodbye!");
 	}
 
 	/**
-	 * Finds all results for a host name and type and prints them on the standard output.
-	 *
-	 * @param hostName Fully qualified domain name of the host being searched.
-	 * @param type     Record type for search.
-	 */
-	private static void findAndPrintResults(String hostName, RecordType type) {
-		DNSNode node = new DNSNode(hostName, type);
-		printResults(node, getResults(node, 0));
-	}
-
-	/**
-	 * Finds all the results for a specific node.
-	 *
-	 * @param node             Host and record type to be used for search.
-	 * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
-	 *                         The initial call should be made with 0 (zero), while recursive calls for
-	 *                         regarding CNAME results should increment this value by 1. Once this value
-	 *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
-	 *                         returns an empty set.
-	 * @return A set of resource records corresponding to the specific query requested.
+	 * Loads the cache snapshot named by the dnslookup.cache.snapshot system property, if any, and
+	 * saves the cache to it periodically and when the program exits.
 	 */
-	private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
-		if (indirectionLevel >= MAX_INDIRECTION_LEVEL) {
-			System.err.println("Maximum number of indirection levels reached.");
-			return Collections.emptySet();
-		}
-
-		Set<ResourceRecord> resourceRecords;
-		DNSNode cnameNode = getCnameResourceRecords(node, 0);
-		if (cnameNode != null && !cnameNode.equals(node)) {
-			resourceRecords = resolveDNS(cnameNode);
-			if (!resourceRecords.isEmpty()) {
-				ResourceRecord cnameRecord = (ResourceRecord) resourceRecords.toArray()[0];
-				node = new DNSNode(cnameRecord.getHostName(), node.getType());
+	private static void startCacheSnapshots() {
+		String snapshotFile = System.getProperty(SNAPSHOT_PROPERTY);
+		if (snapshotFile == null)
+			return;
+		Path path = Paths.get(snapshotFile);
+		if (Files.exists(path)) {
+			try {
+				int count = CacheSnapshot.load(cache, path);
+				System.err.println("Loaded " + count + " cached records from " + path + ".");
+			} catch (IOException e) {
+				System.err.println("Could not load cache snapshot (" + e.getMessage() + ").");
 			}
-		} else {
-			resourceRecords = resolveDNS(node);
 		}
-		if (resourceRecords.isEmpty()) {
-			return getResults(node, indirectionLevel + 1);
-		}
-		return cache.getCachedResults(node);
+		long periodSeconds = Long.getLong(SNAPSHOT_PERIOD_PROPERTY, DEFAULT_SNAPSHOT_PERIOD_SECONDS);
+		CacheSnapshot.schedule(cache, path, Math.max(1, periodSeconds));
 	}
 
 	/**
-	 * Attempts to resolve CNAME in the response
+	 * Answers DNS queries received on a UDP port, from the cache or with the resolver, until the
+	 * program is stopped.
 	 *
-	 * @param node             Host and record type to be used for search.
-	 * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
-	 *                         The initial call should be made with 0 (zero), while recursive calls for
-	 *                         regarding CNAME results should increment this value by 1. Once this value
-	 *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
-	 *                         returns an empty set.
-	 * @return DNSNode
+	 * @param address Local address to listen on.
+	 * @param port    UDP port to listen on.
+	 * @param workers Number of threads receiving queries.
 	 */
-	private static DNSNode getCnameResourceRecords(DNSNode node, int indirectionLevel) {
-		if (indirectionLevel >= MAX_INDIRECTION_LEVEL) {
-			System.err.println("Maximum number of indirection levels reached.");
-			return null;
-		}
-		DNSNode cnameServerToUse = new DNSNode(node.getHostName(), RecordType.CNAME);
-		if (cache.getCachedResults(cnameServerToUse).isEmpty()) {
-			return node;
-		}
-		ResourceRecord cnameServerIPRecord = (ResourceRecord) cache.getCachedResults(cnameServerToUse).toArray()[0];
-		DNSNode cnameNode = new DNSNode(cnameServerIPRecord.getTextResult(), node.getType());
-		if (!cache.getCachedResults(cnameNode).isEmpty()) {
-			return cnameNode;
-		}
-		return getCnameResourceRecords(cnameNode, indirectionLevel + 1);
-
-	}
-
-	/**
-	 * Resolves all levels until no more levels can be discovered
-	 *
-	 * @param node Host and record type to be used for search.
-	 * @return Set<ResourceRecord>
-	 */
-	private static Set<ResourceRecord> resolveDNS(DNSNode node) {
-		if (cache.getCachedResults(node).isEmpty()) {
-			retrieveResultsFromServer(node, rootServer);
+	private static void runServer(InetAddress address, int port, int workers) {
+		DNSServer server = new DNSServer(resolver, cache, address, port, workers, DNSServer.DEFAULT_MAX_PENDING_LOOKUPS);
+		try {
+			server.start();
+			System.out.println("Listening on " + address.getHostAddress() + " UDP port " + server.getLocalPort() + " with " + workers
+					+ " workers on " + server.getChannelCount() + " channels.");
+			server.join();
+		} catch (IOException e) {
+			System.err.println("Could not start server (" + e.getMessage() + ").");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			server.close();
 		}
-		return cache.getCachedResults(node);
 	}
 
 	/**
-	 * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
-	 * and the query is repeated with a new server if the provided one is non-authoritative.
-	 * Results are stored in the cache.
+	 * Resolves every lookup listed by a reader, one per line in the format of the lookup command
+	 * ("hostName [type]", with # starting a comment). Lookups run concurrently on the executor
+	 * of the resolver, and at most concurrency of them are in progress at a time; lines are only
+	 * read as earlier lookups finish. A lookup answered with stale records still counts until it
+	 * has finished in the background. Results are printed as soon as each
+	 * lookup completes, so they do not come out in the order of the input.
 	 *
-	 * @param node   Host name and record type to be used for the query.
-	 * @param server Address of the server to be used for the query.
+	 * @param reader      Source of the lookups.
+	 * @param concurrency Maximum number of lookups in progress at once.
+	 * @throws IOException if the reader fails
 	 */
-	private static void retrieveResultsFromServer(DNSNode node, InetAddress server) {
-		byte[] message = new byte[512]; // query is no longer than 512 bytes
-		DNSServerResponse serverResponse = null;
+	private static void runBatch(BufferedReader reader, int concurrency) throws IOException {
+		Semaphore permits = new Semaphore(concurrency);
+		long start = System.nanoTime();
+		int count = 0;
 		try {
-			// Note that a resent query will have the same query ID.
-			serverResponse = DNSQueryHandler.buildAndSendQuery(message, server, node);
-			Set<ResourceRecord> nameservers = DNSQueryHandler.decodeAndCacheResponse(serverResponse.getTransactionID(), serverResponse.getResponse(), cache);
-			if (nameservers == null)
-				nameservers = Collections.emptySet();
-
-			queryNextLevel(node, nameservers);
-
-		} catch (MissedResponseException | FlagException | IOException ignored) {
-			if (DNSQueryHandler.verboseTracing) {
-				System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(), node.getType(), -1, "0.0.0.0");
-			}
-			reattemptSendAndDecode(message, node, 0);
-		} catch (NullPointerException ignored) {
-			if (DNSQueryHandler.verboseTracing) {
-				System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(), node.getType(), -1, "0.0.0.0");
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] lookupArgs = line.trim().split("#", 2)[0].trim().split("\\s+");
+				if (lookupArgs[0].isEmpty())
+					continue;
+				RecordType type = RecordType.A;
+				try {
+					if (lookupArgs.length > 2)
+						throw new IllegalArgumentException();
+					DNSQuery.checkName(lookupArgs[0]);
+					if (lookupArgs.length == 2)
+						type = RecordType.valueOf(lookupArgs[1].toUpperCase());
+				} catch (IllegalArgumentException ex) {
+					System.err.println("Invalid lookup, skipped: " + line);
+					continue;
+				}
+				DNSNode node = new DNSNode(lookupArgs[0], type);
+				permits.acquireUninterruptibly();
+				count++;
+				resolver.resolve(node, permits::release).whenComplete((results, e) ->
+						printResults(node, results != null ? results : Collections.emptySet()));
 			}
-		} catch (Exception e) {
-			System.out.println(e.getMessage());
+		} finally {
+			permits.acquireUninterruptibly(concurrency);
 		}
+		System.err.printf("Resolved %d lookups in %d ms\n", count, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
 	}
 
-	/**
-	 * Finds the IP of a random nameserver that has been discovered.
-	 *
-	 * @return List<ResourceRecord>
-	 */
-	private static List<ResourceRecord> resolveNameServerIntoIP() {
-		int randomServerIndex = DNSQueryHandler.random.nextInt(dnsDataHolder.nameservers.size());
-		DNSNode nameServerToUseDnsNode = new DNSNode(dnsDataHolder.nameservers.get(randomServerIndex).getTextResult(), RecordType.A);
-		return resolveDNS(nameServerToUseDnsNode).stream().toList();
+	private static double doubleProperty(String name, double defaultValue) {
+		String value = System.getProperty(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
 	}
 
-	/**
-	 * Re-attempt to send the query that failed, but to a different server each time until QUERY_RESEND_MAX_ATTEMPTS
-	 * is reached.
-	 *
-	 * @param message  Message required to construct the query
-	 * @param node     Host name and record type to be used for the query.
-	 * @param attempts Usually starts from 0, and attempts to discover the next layer, QUERY_RESEND_MAX_ATTEMPTS times
-	 */
-	private static void reattemptSendAndDecode(byte[] message, DNSNode node, int attempts) {
-		if (attempts >= QUERY_RESEND_MAX_ATTEMPTS) {
-			return;
-		}
+	private static int parseNumber(String value) {
 		try {
-			List<ResourceRecord> records = resolveNameServerIntoIP();
-			int randomServerIndex = DNSQueryHandler.random.nextInt(records.size());
-			DNSServerResponse serverResponse = DNSQueryHandler.buildAndSendQueryWithID(message, records.get(randomServerIndex).getInetResult(), node, dnsDataHolder);
-			Set<ResourceRecord> nameservers = DNSQueryHandler.decodeAndCacheResponse(serverResponse.getTransactionID(), serverResponse.getResponse(), cache);
-			queryNextLevel(node, nameservers);
-		} catch (Exception e) {
-			if (DNSQueryHandler.verboseTracing) {
-				System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(), node.getType(), -1, "0.0.0.0");
-			}
-			reattemptSendAndDecode(message, node, attempts + 1);
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return 0;
 		}
 	}
 
-
 	/**
-	 * Query the next level DNS Server, if necessary
+	 * Finds all results for a host name and type and prints them on the standard output.
 	 *
-	 * @param node        Host name and record type of the query.
-	 * @param nameservers List of name servers returned from the previous level to query the next level.
+	 * @param hostName Fully qualified domain name of the host being searched.
+	 * @param type     Record type for search.
 	 */
-	private static void queryNextLevel(DNSNode node, Set<ResourceRecord> nameservers) {
-		if (cache.getCachedResults(node).isEmpty() && !nameservers.isEmpty()) {
-			List<ResourceRecord> records = resolveNameServerIntoIP();
-			if (records.isEmpty()) {
-				// No more levels to discover
-				return;
-			}
-			// Query the next level DNS Server
-			int resourceRecordIndex = DNSQueryHandler.random.nextInt(records.size());
-			ResourceRecord nameServerIPRecord = records.get(resourceRecordIndex);
-			retrieveResultsFromServer(node, nameServerIPRecord.getInetResult());
-		}
+	private static void findAndPrintResults(String hostName, RecordType type) {
+		DNSNode node = new DNSNode(hostName, type);
+		printResults(node, resolver.resolve(node).join());
 	}
 
 	/**
@@ -325,10 +370,13 @@ public class DNSLookupService {
 	 * @param results Set of results to be printed for the node.
 	 */
 	private static void printResults(DNSNode node, Set<ResourceRecord> results) {
+		// Lines are printed at once, so results of concurrent lookups do not interleave
+		Formatter lines = new Formatter();
 		if (results.isEmpty())
-			System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(), node.getType(), -1, "0.0.0.0");
+			lines.format("%-30s %-5s %-8d %s\n", node.getHostName(), node.getType(), -1, "0.0.0.0");
 		for (ResourceRecord record : results) {
-			System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(), node.getType(), record.getTTL(), record.getTextResult());
+			lines.format("%-30s %-5s %-8d %s\n", node.getHostName(), node.getType(), record.getTTL(), record.getTextResult());
 		}
+		System.out.print(lines);
 	}
 }
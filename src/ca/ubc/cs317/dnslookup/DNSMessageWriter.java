@@ -0,0 +1,213 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes a DNS message, such as the response of the server mode, into a buffer. Names are
+ * compressed: every name and suffix written is remembered by its offset, and later names that
+ * end with it point there instead of repeating its labels.
+ *
+ * Records are appended section by section, answers first. A record that does not fit in the
+ * buffer is left out, and marks the message as truncated; records of types whose data is not
+ * kept by the cache (anything but A, AAAA, NS, CNAME and SOA) are skipped.
+ */
+public class DNSMessageWriter {
+
+	private static final int HEADER_SIZE = 12;
+	// Pointers are 14 bits wide, so only names before this offset can be pointed to
+	private static final int MAX_POINTER_OFFSET = 0x4000;
+	private static final int CLASS_IN = 1;
+	private static final int OPT_RECORD_SIZE = 11;
+
+	private final ByteBuffer buffer;
+	private final int messageStart;
+	private final Map<String, Integer> nameOffsets = new HashMap<>();
+	// Suffixes remembered while writing the current record, forgotten if it does not fit
+	private final List<String> recordNames = new ArrayList<>();
+	private final int[] counts = new int[3];
+	private boolean truncated = false;
+	// UDP payload size advertised in an OPT record at the end of the message, or 0 for none
+	private int ednsPayloadSize = 0;
+
+	/**
+	 * @param buffer ByteBuffer the message is written to, from its position up to its limit
+	 */
+	public DNSMessageWriter(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.messageStart = buffer.position();
+		buffer.position(messageStart + HEADER_SIZE);
+	}
+
+	/**
+	 * Ends the message with an OPT record advertising EDNS(0), as a response must when the query
+	 * had one. Room for the record is kept at the end of the buffer, so it is never truncated.
+	 * It must be called before any record is added.
+	 *
+	 * @param payloadSize Largest UDP payload this side can receive
+	 */
+	public void setEdns(int payloadSize) {
+		if (ednsPayloadSize == 0)
+			buffer.limit(buffer.limit() - OPT_RECORD_SIZE);
+		ednsPayloadSize = payloadSize;
+	}
+
+	/**
+	 * Writes the question of the message. It must be written before any record.
+	 *
+	 * @param question DNSQuery to be echoed
+	 */
+	public void writeQuestion(DNSQuery question) {
+		writeName(question.QNAME);
+		buffer.putShort((short) question.QTYPE);
+		buffer.putShort((short) question.QCLASS);
+	}
+
+	/**
+	 * Appends a record to the answer section.
+	 * @param record ResourceRecord to be written
+	 * @return false if the record did not fit, or cannot be encoded
+	 */
+	public boolean addAnswer(ResourceRecord record) {
+		return addRecord(0, record);
+	}
+
+	/**
+	 * Appends a record to the authority section. All answers must have been added before.
+	 * @param record ResourceRecord to be written
+	 * @return false if the record did not fit, or cannot be encoded
+	 */
+	public boolean addAuthority(ResourceRecord record) {
+		return addRecord(1, record);
+	}
+
+	/**
+	 * Appends a record to the additional section. All answers and authority records must have
+	 * been added before.
+	 * @param record ResourceRecord to be written
+	 * @return false if the record did not fit, or cannot be encoded
+	 */
+	public boolean addAdditional(ResourceRecord record) {
+		return addRecord(2, record);
+	}
+
+	/**
+	 * @return true if a record was left out because it did not fit
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Writes the header, with the counts of the records added, and sets the position and limit of
+	 * the buffer around the message.
+	 *
+	 * @param header DNSHeader of the message; its counts and TC flag are filled in
+	 * @return The buffer, ready to be sent
+	 */
+	public ByteBuffer finish(DNSHeader header) {
+		header.ANCOUNT = counts[0];
+		header.NSCOUNT = counts[1];
+		header.ARCOUNT = counts[2];
+		if (truncated)
+			header.TC = 1;
+		if (ednsPayloadSize > 0) {
+			buffer.limit(buffer.limit() + OPT_RECORD_SIZE);
+			DNSQueryHandler.encodeOpt(buffer, ednsPayloadSize);
+			header.ARCOUNT++;
+		}
+		int end = buffer.position();
+		header.encode(buffer.position(messageStart));
+		return buffer.limit(end).position(messageStart);
+	}
+
+	private boolean addRecord(int section, ResourceRecord record) {
+		if (truncated || !canEncode(record.getType()))
+			return false;
+		int start = buffer.position();
+		recordNames.clear();
+		try {
+			writeName(record.getHostName());
+			buffer.putShort((short) record.getType().getCode());
+			buffer.putShort((short) CLASS_IN);
+			buffer.putInt((int) Math.max(0, record.getTTL()));
+			int lengthOffset = buffer.position();
+			buffer.putShort((short) 0);
+			writeData(record);
+			buffer.putShort(lengthOffset, (short) (buffer.position() - lengthOffset - 2));
+		} catch (BufferOverflowException e) {
+			// Forget the names of the partial record, which are not in the message
+			buffer.position(start);
+			for (String suffix : recordNames)
+				nameOffsets.remove(suffix);
+			truncated = true;
+			return false;
+		}
+		counts[section]++;
+		return true;
+	}
+
+	private void writeData(ResourceRecord record) {
+		switch (record.getType()) {
+			case A:
+			case AAAA:
+				buffer.put(record.getAddressBytes());
+				break;
+			case NS:
+			case CNAME:
+				writeName(record.getTextResult());
+				break;
+			case SOA:
+				// The cache keeps the SOA as "mname rname serial refresh retry expire minimum"
+				String[] fields = record.getTextResult().split(" ");
+				writeName(fields[0]);
+				writeName(fields[1]);
+				for (int i = 2; i < 7; i++)
+					buffer.putInt((int) Long.parseLong(fields[i]));
+				break;
+			default:
+				throw new IllegalArgumentException("Cannot encode " + record.getType() + " records");
+		}
+	}
+
+	/**
+	 * @param type RecordType of a record
+	 * @return true if records of the type can be written, that is, if the cache keeps their data
+	 */
+	static boolean canEncode(RecordType type) {
+		return type == RecordType.A || type == RecordType.AAAA || type == RecordType.NS
+				|| type == RecordType.CNAME || type == RecordType.SOA;
+	}
+
+	/**
+	 * Writes a name, ending with a pointer to the longest suffix already written, if any.
+	 */
+	private void writeName(String name) {
+		int start = 0;
+		while (start < name.length()) {
+			String suffix = name.substring(start).toLowerCase(Locale.ROOT);
+			Integer offset = nameOffsets.get(suffix);
+			if (offset != null) {
+				buffer.putShort((short) (0xC000 | offset));
+				return;
+			}
+			if (buffer.position() - messageStart < MAX_POINTER_OFFSET) {
+				nameOffsets.put(suffix, buffer.position() - messageStart);
+				recordNames.add(suffix);
+			}
+			int end = name.indexOf('.', start);
+			if (end < 0)
+				end = name.length();
+			buffer.put((byte) (end - start));
+			for (int i = start; i < end; i++)
+				buffer.put((byte) name.charAt(i));
+			start = end + 1;
+		}
+		buffer.put((byte) 0);
+	}
+}
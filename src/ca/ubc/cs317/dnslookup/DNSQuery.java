@@ -1,13 +1,15 @@
 package ca.ubc.cs317.dnslookup;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * This class represent a DNS Query
  */
 public class DNSQuery {
+	// RFC 1035, section 2.3.4
+	public static final int MAX_LABEL_LENGTH = 63;
+	public static final int MAX_NAME_LENGTH = 255;
+
 	public String QNAME;
 	public int QTYPE, QCLASS;
 
@@ -22,36 +24,75 @@ public class DNSQuery {
 
 	/**
 	 * Decode DNS Query response
-	 * @param inputStream DataInputStream
-	 * @param responseBuffer byte[]
+	 * @param buffer ByteBuffer positioned at the start of the question section
+	 * @param nameResolver NameResolver of the message
 	 * @param qdcount qdcount
-	 * @throws IOException IOException
+	 * @throws MalformedResponseException if the name of the question cannot be decoded
 	 */
-	public void decode(DataInputStream inputStream, byte[] responseBuffer, int qdcount) throws IOException {
+	public void decode(ByteBuffer buffer, NameResolver nameResolver, int qdcount) throws MalformedResponseException {
 		// For this assignment the question count is not more than 1
 		if (qdcount > 0) {
-			QNAME = NameResolver.getName(inputStream, responseBuffer);
-			QNAME = QNAME.substring(0, QNAME.length() - 1);
-			QTYPE = inputStream.readUnsignedShort();
-			QCLASS = inputStream.readUnsignedShort();
+			QNAME = nameResolver.getName();
+			QTYPE = buffer.getShort() & 0xFFFF;
+			QCLASS = buffer.getShort() & 0xFFFF;
 		}
 	}
 
 	/**
 	 * Encode DNS Query
-	 * @param stream DataOutputStream
-	 * @throws IOException IOException
+	 * @param buffer ByteBuffer the question is written to, at its position
+	 */
+	public void encode(ByteBuffer buffer) {
+		encodeName(QNAME, buffer);
+		buffer.putShort((short) QTYPE);
+		buffer.putShort((short) QCLASS);
+	}
+
+	/**
+	 * Checks that a name can be encoded: labels of at most 63 bytes, and at most 255 bytes for
+	 * the whole name once encoded
+	 * @param name Name whose labels are separated by dots; a trailing dot is ignored
+	 * @throws IllegalArgumentException if a label or the name is too long
 	 */
-	public void encode(DataOutputStream stream) throws IOException {
-		String[] domainNames = QNAME.split("\\.");
-		for (String domainName : domainNames) {
-			stream.writeByte(domainName.length());
-			stream.writeBytes(domainName);
+	public static void checkName(String name) {
+		// The terminating root label
+		int length = 1;
+		int start = 0;
+		while (start < name.length()) {
+			int end = name.indexOf('.', start);
+			if (end < 0)
+				end = name.length();
+			if (end - start > MAX_LABEL_LENGTH)
+				throw new IllegalArgumentException("Label longer than " + MAX_LABEL_LENGTH + " bytes in " + name);
+			if (end > start)
+				length += 1 + end - start;
+			start = end + 1;
 		}
-		// Indicate the end of Qname
-		stream.writeByte(0x0);
+		if (length > MAX_NAME_LENGTH)
+			throw new IllegalArgumentException("Name longer than " + MAX_NAME_LENGTH + " bytes: " + name);
+	}
 
-		stream.writeShort(QTYPE);
-		stream.writeShort(QCLASS);
+	/**
+	 * Writes a name as a sequence of length-prefixed labels, without compression
+	 * @param name Name whose labels are separated by dots; a trailing dot is ignored
+	 * @param buffer ByteBuffer the name is written to, at its position
+	 * @throws IllegalArgumentException if a label or the name is too long
+	 */
+	public static void encodeName(String name, ByteBuffer buffer) {
+		checkName(name);
+		int start = 0;
+		while (start < name.length()) {
+			int end = name.indexOf('.', start);
+			if (end < 0)
+				end = name.length();
+			if (end > start) {
+				buffer.put((byte) (end - start));
+				for (int i = start; i < end; i++)
+					buffer.put((byte) name.charAt(i));
+			}
+			start = end + 1;
+		}
+		// Indicate the end of Qname
+		buffer.put((byte) 0x0);
 	}
 }
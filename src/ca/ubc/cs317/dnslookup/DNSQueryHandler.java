@@ -1,118 +1,114 @@
 package ca.ubc.cs317.dnslookup;
 
-import java.io.*;
-import java.net.*;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.Random;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DNSQueryHandler {
 
-	private static final int DEFAULT_DNS_PORT = 53;
-	private static DatagramSocket socket;
-	public static boolean verboseTracing = false;
+	// A query is a 12 byte header followed by a name of at most 255 bytes, a type, a class and an OPT record
+	private static final int MAX_QUERY_SIZE = 512;
+	// UDP payload size advertised with EDNS(0) (RFC 6891), large enough for most referrals with their glue
+	public static final int EDNS_UDP_PAYLOAD_SIZE = 4096;
+	public static final int TYPE_OPT = 41;
+	// Root name, type, payload size, extended RCODE and flags, and an empty RDATA
+	private static final int OPT_RECORD_SIZE = 11;
+	private static final int MAX_QUERY_TEMPLATES = 4096;
 
-	public static final Random random = new Random();
+	// Encoded queries with a zero ID, so a new query for the same node only patches the ID
+	private static final Map<DNSNode, byte[]> queryTemplates = new ConcurrentHashMap<>();
 
 	/**
-	 * Sets up the socket and set the timeout to 5 seconds
+	 * Writes the query for a node into a new heap buffer of its exact size. Lookups may each run
+	 * on a thread of their own, so a buffer kept per thread would not be reused; a heap buffer of
+	 * a few dozen bytes is cheaper than a direct one that only a Cleaner releases.
 	 *
-	 * @throws SocketException if the socket could not be opened, or if there was an
-	 *                         error with the underlying protocol
+	 * @param node DNSNode
+	 * @param transactionID The id of the query
+	 * @return A buffer holding the message of the query
+	 * @throws IllegalArgumentException if the name of the node is too long to be encoded
 	 */
-	public static void openSocket() throws SocketException {
-		socket = new DatagramSocket();
-		socket.setSoTimeout(5000);
+	public static ByteBuffer getMessageQuery(DNSNode node, int transactionID) {
+		byte[] template = getQueryTemplate(node);
+		return getMessageQuery(template, transactionID, ByteBuffer.allocate(template.length));
 	}
 
 	/**
-	 * Closes the socket
+	 * Writes the query for a node into a buffer. The header and question are encoded once per
+	 * node and kept as a template, so later queries for the same node only copy the template
+	 * and patch in the transaction ID.
+	 *
+	 * @param node DNSNode
+	 * @param transactionID The id of the query
+	 * @param buffer Buffer the query is written to; it is cleared first
+	 * @return The buffer, flipped so that it holds the message of the query
+	 * @throws IllegalArgumentException if the name of the node is too long to be encoded
 	 */
-	public static void closeSocket() {
-		socket.close();
+	public static ByteBuffer getMessageQuery(DNSNode node, int transactionID, ByteBuffer buffer) {
+		return getMessageQuery(getQueryTemplate(node), transactionID, buffer);
 	}
 
-	/**
-	 * Set verboseTracing to tracing
-	 */
-	public static void setVerboseTracing(boolean tracing) {
-		verboseTracing = tracing;
+	private static ByteBuffer getMessageQuery(byte[] template, int transactionID, ByteBuffer buffer) {
+		buffer.clear();
+		buffer.put(template);
+		buffer.putShort(0, (short) transactionID);
+		return buffer.flip();
 	}
 
-	/**
-	 * Builds the query, sends it to the server, and returns the response.
-	 *
-	 * @param message Byte array used to store the query to DNS servers.
-	 * @param server  The IP address of the server to which the query is being sent.
-	 * @param node    Host and record type to be used for search.
-	 * @return A DNSServerResponse Object containing the response buffer and the transaction ID.
-	 * @throws IOException if an IO Exception occurs
-	 */
-	public static DNSServerResponse buildAndSendQuery(byte[] message, InetAddress server, DNSNode node) throws IOException {
-		// upper-bound is exclusive, so I added a one to account for 65536
-		DNSLookupService.dnsDataHolder.transactionID = random.nextInt(65537);
-		return buildAndSendQueryWithID(message, server, node, DNSLookupService.dnsDataHolder);
+	private static byte[] getQueryTemplate(DNSNode node) {
+		byte[] template = queryTemplates.get(node);
+		if (template == null) {
+			template = encodeQueryTemplate(node);
+			if (queryTemplates.size() >= MAX_QUERY_TEMPLATES)
+				queryTemplates.clear();
+			queryTemplates.put(node, template);
+		}
+		return template;
 	}
 
 	/**
-	 * Builds the query with a specific ID, sends it to the server, and returns the response.
+	 * Encodes the header and question of a query for a node, with a transaction ID of zero.
 	 *
-	 * This function is mainly used in case of a thrown exception. Another attempt is made with
-	 * the same query id but to a different server
-	 *
-	 * @param message Byte array used to store the query to DNS servers.
-	 * @param server The IP address of the server to which the query is being sent.
-	 * @param node  Host and record type to be used for search.
-	 * @param dnsDataHolder Keeps transaction ID and nameservers for the last query
-	 * @return DNSServerResponse
-	 * @throws IOException if an IO Exception occurs
+	 * @param node DNSNode
+	 * @return byte[] that contains the message of the query
 	 */
-	public static DNSServerResponse buildAndSendQueryWithID(byte[] message, InetAddress server, DNSNode node, DNSDataHolder dnsDataHolder) throws IOException {
-		if (verboseTracing) {
-			System.out.println();
-			System.out.println();
-		}
-		if (verboseTracing) {
-			System.out.println("Query ID     " + dnsDataHolder.transactionID + " " + node.getHostName() + "  " + node.getType() + " --> " + server.getHostAddress());
-		}
-		message = getMessageQuery(node, dnsDataHolder.transactionID);
-		return sendQuery(message, server, dnsDataHolder.transactionID);
+	private static byte[] encodeQueryTemplate(DNSNode node) {
+		DNSHeader dnsHeader = new DNSHeader(0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0001, 0x0000, 0x0000, 0x0001);
+		DNSQuery dnsQuery = new DNSQuery(node.getHostName(), node.getType().getCode(), 0x0001);
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_QUERY_SIZE);
+		dnsHeader.encode(buffer);
+		dnsQuery.encode(buffer);
+		encodeOpt(buffer, EDNS_UDP_PAYLOAD_SIZE);
+		byte[] template = new byte[buffer.position()];
+		buffer.flip().get(template);
+		return template;
 	}
 
 	/**
-	 * This function just sends the query using socket
+	 * Writes an OPT pseudo-record, which advertises EDNS(0) support and the UDP payload size the
+	 * sender can receive. It belongs to the additional section, which must be counted in the header.
 	 *
-	 * @param message Byte array used to store the query to DNS servers.
-	 * @param server The IP address of the server to which the query is being sent
-	 * @param transactionID The id of the query
-	 * @return DNSServerResponse
-	 * @throws IOException if an IO Exception occurs
+	 * @param buffer ByteBuffer the record is written to, at its position
+	 * @param payloadSize Largest UDP payload the sender can receive
 	 */
-	public static DNSServerResponse sendQuery(byte[] message, InetAddress server, int transactionID) throws IOException {
-		DatagramPacket sentPacket = new DatagramPacket(message, message.length, server, DEFAULT_DNS_PORT);
-		socket.send(sentPacket);
-		byte[] responseBuffer = new byte[1024];
-		DatagramPacket receivedPacket = new DatagramPacket(responseBuffer, responseBuffer.length);
-		socket.receive(receivedPacket);
-		return new DNSServerResponse(ByteBuffer.wrap(responseBuffer), transactionID);
+	public static void encodeOpt(ByteBuffer buffer, int payloadSize) {
+		buffer.put((byte) 0);
+		buffer.putShort((short) TYPE_OPT);
+		buffer.putShort((short) payloadSize);
+		buffer.putInt(0);
+		buffer.putShort((short) 0);
 	}
 
 	/**
+	 * Removes the OPT record from a query written by getMessageQuery, for a server that does not
+	 * support EDNS(0) and rejected the query with a format error.
 	 *
-	 * @param node DNSNode
-	 * @param transactionID The id of the query
-	 * @return byte[] that contains the message of the query
-	 * @throws IOException if an IO Exception occurs
+	 * @param query Buffer holding the message of the query, from its position
+	 * @return The buffer, with the OPT record cut off its end
 	 */
-	public static byte[] getMessageQuery(DNSNode node, int transactionID) throws IOException {
-		DNSHeader dnsHeader = new DNSHeader(transactionID, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0001, 0x0000, 0x0000, 0x0000);
-		DNSQuery dnsQuery = new DNSQuery(node.getHostName(), node.getType().getCode(), 0x0001);
-		ByteArrayOutputStream stream = new ByteArrayOutputStream();
-		DataOutputStream outputStream = new DataOutputStream(stream);
-		dnsHeader.encode(outputStream);
-		dnsQuery.encode(outputStream);
-		return stream.toByteArray();
+	public static ByteBuffer withoutEdns(ByteBuffer query) {
+		query.putShort(query.position() + 10, (short) 0);
+		return query.limit(query.limit() - OPT_RECORD_SIZE);
 	}
 
 	/**
@@ -121,16 +117,13 @@ public class DNSQueryHandler {
 	 * @param transactionID  Transaction ID of the current communication with the DNS server
 	 * @param responseBuffer DNS server's response
 	 * @param cache          To store the decoded server's response
-	 * @return A set of resource records corresponding to the name servers of the response.
+	 * @param zone           Zone the server is authoritative for; records of other names are dropped
+	 * @param verboseTracing true to print the records of the response
+	 * @return The name servers of the response, bound to the glue records of the same response.
 	 */
-	public static Set<ResourceRecord> decodeAndCacheResponse(int transactionID, ByteBuffer responseBuffer, DNSCache cache) throws Exception {
-		byte[] responseArray = responseBuffer.array();
-		ByteArrayInputStream inputStream = new ByteArrayInputStream(responseArray);
-		DataInputStream dataInputStream = new DataInputStream(inputStream);
+	public static Referral decodeAndCacheResponse(int transactionID, ByteBuffer responseBuffer, DNSCache cache, String zone, boolean verboseTracing) throws Exception {
 		DNSResponse dnsResponse = new DNSResponse();
-		Set<ResourceRecord> result = dnsResponse.decode(transactionID, dataInputStream, responseArray, cache);
-		DNSLookupService.dnsDataHolder.nameservers = dnsResponse.dnsrData.nameServers.stream().toList();
-		return result;
+		return dnsResponse.decode(transactionID, responseBuffer.duplicate().rewind(), cache, zone, verboseTracing);
 	}
 
 	/**
@@ -140,8 +133,7 @@ public class DNSQueryHandler {
 	 * @param rtype  The type of the record to be printed
 	 */
 	public static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
-		if (verboseTracing)
-			System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(), record.getTTL(), record.getType() == RecordType.OTHER ? rtype : record.getType(), record.getTextResult());
+		System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(), record.getTTL(), record.getType() == RecordType.OTHER ? rtype : record.getType(), record.getTextResult());
 	}
 }
 
@@ -1,11 +1,8 @@
 package ca.ubc.cs317.dnslookup;
 
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.net.Inet4Address;
-import java.net.Inet6Address;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -13,9 +10,16 @@ import java.util.Set;
  * This class keeps a set of each answers, nameServers, and additionalInformation
  */
 public class DNSRData {
+	// Two root names and five 32 bit fields
+	private static final int SOA_MIN_RDLENGTH = 22;
+
 	public Set<ResourceRecord> answers;
 	public Set<ResourceRecord> nameServers;
 	public Set<ResourceRecord> additionalInformation;
+	// Time a negative answer may be cached for, from the SOA of the authority section (RFC 2308), or -1
+	public long negativeTTL = -1;
+	// Owner of that SOA record, or null
+	public String negativeZone;
 
 	public DNSRData() {
 		answers = new HashSet<>();
@@ -24,38 +28,51 @@ public class DNSRData {
 	}
 
 	/**
-	 * Decode the input stream and caches the Resource records
+	 * Decode the records of the response and caches the Resource records. Names and addresses
+	 * are read straight from the response buffer.
 	 *
-	 * @param dataInputStream DataInputStream
-	 * @param responseBuffer byte[]
+	 * @param buffer ByteBuffer positioned at the start of the answer section
+	 * @param nameResolver NameResolver of the message
 	 * @param ANCOUNT Answer Count
 	 * @param ARCOUNT Additional Information Count
 	 * @param NSCOUNT Name Servers count
 	 * @param cache Cache to store the result
+	 * @param zone Zone the server is authoritative for, or null to keep every record. Records
+	 *             of names outside it are dropped, as the server has no authority over them.
 	 * @throws IOException if an IO Exception occurs
 	 */
-	public void decode(DataInputStream dataInputStream, byte[] responseBuffer, int ANCOUNT,
-					   int ARCOUNT, int NSCOUNT, DNSCache cache) throws IOException {
+	public void decode(ByteBuffer buffer, NameResolver nameResolver, int ANCOUNT, int ARCOUNT, int NSCOUNT, DNSCache cache, String zone) throws IOException {
+		DNSAnswer dnsAnswer = new DNSAnswer();
 		for (int i = 0; i < ANCOUNT + ARCOUNT + NSCOUNT; i++) {
-			DNSAnswer dnsAnswer = new DNSAnswer();
-			dnsAnswer.decode(dataInputStream, responseBuffer);
+			dnsAnswer.decode(buffer, nameResolver);
+			// The OPT pseudo-record of EDNS(0) describes the message, and is not cached
+			if (dnsAnswer.TYPE == DNSQueryHandler.TYPE_OPT)
+				continue;
+			if (zone != null && !Referral.isInZone(dnsAnswer.NAME, zone))
+				continue;
+			RecordType type = RecordType.getByCode(dnsAnswer.TYPE);
 			ResourceRecord resourceRecord;
-			if (RecordType.getByCode(dnsAnswer.TYPE) == RecordType.A) {
-				resourceRecord = new ResourceRecord(dnsAnswer.NAME, RecordType.getByCode(dnsAnswer.TYPE),
-						dnsAnswer.TTL, Inet4Address.getByAddress(dnsAnswer.NAME, dnsAnswer.RDATA));
-			} else if (RecordType.getByCode(dnsAnswer.TYPE) == RecordType.AAAA) {
-				resourceRecord = new ResourceRecord(dnsAnswer.NAME, RecordType.getByCode(dnsAnswer.TYPE),
-						dnsAnswer.TTL, Inet6Address.getByAddress(dnsAnswer.NAME, dnsAnswer.RDATA));
-			} else if (RecordType.getByCode(dnsAnswer.TYPE) == RecordType.NS
-					|| RecordType.getByCode(dnsAnswer.TYPE) == RecordType.CNAME) {
-				ByteArrayInputStream NSInputStream = new ByteArrayInputStream(dnsAnswer.RDATA, 0,
-						dnsAnswer.RDLENGTH);
-				DataInputStream NSDataStream = new DataInputStream(NSInputStream);
-				String name = NameResolver.getName(NSDataStream, responseBuffer);
-				resourceRecord = new ResourceRecord(dnsAnswer.NAME, RecordType.getByCode(dnsAnswer.TYPE),
-						dnsAnswer.TTL, name.substring(0, name.length() - 1));
+			if (type == RecordType.A && dnsAnswer.RDLENGTH == 4) {
+				byte[] address = new byte[4];
+				buffer.get(dnsAnswer.RDATAOffset, address);
+				resourceRecord = new ResourceRecord(dnsAnswer.NAME, type, dnsAnswer.TTL, address);
+			} else if (type == RecordType.AAAA && dnsAnswer.RDLENGTH == 16) {
+				byte[] address = new byte[16];
+				buffer.get(dnsAnswer.RDATAOffset, address);
+				resourceRecord = new ResourceRecord(dnsAnswer.NAME, type, dnsAnswer.TTL, address);
+			} else if (type == RecordType.SOA && dnsAnswer.RDLENGTH >= SOA_MIN_RDLENGTH) {
+				resourceRecord = new ResourceRecord(dnsAnswer.NAME, type,
+						dnsAnswer.TTL, decodeSOA(buffer, nameResolver, dnsAnswer));
+				if (i >= ANCOUNT && i < ANCOUNT + NSCOUNT) {
+					long minimum = buffer.getInt(dnsAnswer.RDATAOffset + dnsAnswer.RDLENGTH - 4) & 0xFFFFFFFFL;
+					negativeTTL = Math.min(dnsAnswer.TTL & 0xFFFFFFFFL, minimum);
+					negativeZone = dnsAnswer.NAME;
+				}
+			} else if (type == RecordType.NS || type == RecordType.CNAME) {
+				resourceRecord = new ResourceRecord(dnsAnswer.NAME, type,
+						dnsAnswer.TTL, nameResolver.getName(dnsAnswer.RDATAOffset));
 			} else {
-				resourceRecord = new ResourceRecord(dnsAnswer.NAME, RecordType.getByCode(dnsAnswer.TYPE),
+				resourceRecord = new ResourceRecord(dnsAnswer.NAME, type,
 						dnsAnswer.TTL, "----");
 			}
 
@@ -69,4 +86,30 @@ public class DNSRData {
 			cache.addResult(resourceRecord);
 		}
 	}
+
+	/**
+	 * Decodes the RDATA of an SOA record into its zone file form: the primary nameserver, the
+	 * mailbox of the administrator, and the serial, refresh, retry, expire and minimum fields.
+	 * The position of the buffer is left unchanged.
+	 *
+	 * @param buffer ByteBuffer holding the whole response
+	 * @param nameResolver NameResolver of the message
+	 * @param dnsAnswer The record whose RDATA is decoded
+	 * @return String with the fields of the SOA record, separated by spaces
+	 * @throws MalformedResponseException if a name cannot be decoded
+	 */
+	private static String decodeSOA(ByteBuffer buffer, NameResolver nameResolver, DNSAnswer dnsAnswer) throws MalformedResponseException {
+		int position = buffer.position();
+		buffer.position(dnsAnswer.RDATAOffset);
+		StringBuilder soa = new StringBuilder();
+		soa.append(nameResolver.getName()).append(' ').append(nameResolver.getName());
+		// The five 32 bit fields end the RDATA, after two names of any length
+		int fields = dnsAnswer.RDATAOffset + dnsAnswer.RDLENGTH - 20;
+		if (buffer.position() > fields)
+			throw new MalformedResponseException("SOA names overrun the RDATA at offset " + dnsAnswer.RDATAOffset);
+		buffer.position(position);
+		for (int i = 0; i < 5; i++)
+			soa.append(' ').append(buffer.getInt(fields + 4 * i) & 0xFFFFFFFFL);
+		return soa.toString();
+	}
 }
@@ -1,8 +1,8 @@
 package ca.ubc.cs317.dnslookup;
 
-import java.io.DataInputStream;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.EOFException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * This class represents a DNS response
@@ -21,21 +21,41 @@ public class DNSResponse {
 	/**
 	 * This function decodes the DNS response
 	 *
-	 * @param transactionID   The id of the query
-	 * @param dataInputStream DataInputStream
-	 * @param responseBuffer  byte[]
-	 * @param cache           Cache to store the result
-	 * @return Set<ResourceRecord>
-	 * @throws Exception if an Exception occurs
+	 * @param transactionID The id of the query
+	 * @param buffer        ByteBuffer holding the whole response, positioned at its start
+	 * @param cache         Cache to store the result
+	 * @return The nameservers of the authority section, bound to their glue
+	 * @throws Exception if an Exception occurs, or EOFException if the response ends in the middle of a record
 	 */
-	public Set<ResourceRecord> decode(int transactionID, DataInputStream dataInputStream, byte[] responseBuffer, DNSCache cache) throws Exception {
-		dnsHeader.decode(dataInputStream, transactionID);
-		dnsQuery.decode(dataInputStream, responseBuffer, dnsHeader.QDCOUNT);
-		dnsrData.decode(dataInputStream, responseBuffer, dnsHeader.ANCOUNT, dnsHeader.ARCOUNT, dnsHeader.NSCOUNT, cache);
+	public Referral decode(int transactionID, ByteBuffer buffer, DNSCache cache) throws Exception {
+		return decode(transactionID, buffer, cache, null, false);
+	}
+
+	/**
+	 * This function decodes the DNS response, and prints its records if tracing is on
+	 *
+	 * @param transactionID  The id of the query
+	 * @param buffer         ByteBuffer holding the whole response, positioned at its start
+	 * @param cache          Cache to store the result
+	 * @param zone           Zone the server is authoritative for, whose records are the only ones
+	 *                       kept, or null to keep every record
+	 * @param verboseTracing true to print the records of the response
+	 * @return The nameservers of the authority section, bound to their glue
+	 * @throws Exception if an Exception occurs, or EOFException if the response ends in the middle of a record
+	 */
+	public Referral decode(int transactionID, ByteBuffer buffer, DNSCache cache, String zone, boolean verboseTracing) throws Exception {
+		try {
+			NameResolver nameResolver = new NameResolver(buffer);
+			dnsHeader.decode(buffer, transactionID);
+			dnsQuery.decode(buffer, nameResolver, dnsHeader.QDCOUNT);
+			dnsrData.decode(buffer, nameResolver, dnsHeader.ANCOUNT, dnsHeader.ARCOUNT, dnsHeader.NSCOUNT, cache, zone);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new EOFException("Response ended in the middle of a record");
+		}
 		if (dnsHeader.isFlaggedError(this)) {
-			throw new FlagException();
+			throw new FlagException(dnsHeader.RCODE, dnsrData.negativeTTL, dnsrData.negativeZone);
 		}
-		if (DNSQueryHandler.verboseTracing) {
+		if (verboseTracing) {
 			System.out.println("Response ID: Authoritative = " + (dnsHeader.AA != 0));
 			System.out.println("  Answers " + "(" + dnsHeader.ANCOUNT + ")");
 			for (ResourceRecord r : dnsrData.answers) {
@@ -50,6 +70,6 @@ public class DNSResponse {
 				DNSQueryHandler.verbosePrintResourceRecord(r, r.getType().getCode());
 			}
 		}
-		return dnsrData.nameServers;
+		return new Referral(dnsrData.nameServers, dnsrData.additionalInformation);
 	}
 }
@@ -0,0 +1,380 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A caching recursive DNS server. It answers the queries of stub resolvers received on a UDP
+ * port, from the cache when it can, and otherwise by resolving them with a Resolver.
+ *
+ * Queries are received by several worker threads. Where the platform supports SO_REUSEPORT,
+ * every worker has its own channel bound to the same port, and the kernel spreads the queries
+ * over them; otherwise the workers share a single channel. A worker answers cache hits itself,
+ * and hands misses to the resolver, whose lookup sends the response once it completes, so a
+ * slow lookup never holds up other queries.
+ *
+ * A query with an OPT record (EDNS(0)) gets a response of up to the UDP payload size it
+ * advertises, capped at DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE, and ending with an OPT record of
+ * its own; other responses are limited to 512 bytes. Responses that do not fit are truncated.
+ *
+ * Answers follow the CNAME chain of the name as far as the cache knows it. A negative answer
+ * (NXDOMAIN, or NOERROR without answers) carries the SOA record of the closest enclosing zone
+ * found in the cache, and SERVFAIL is returned when the lookup fails.
+ *
+ * The server listens on the loopback address unless it is given another one, so it does not
+ * answer recursive queries from the whole network by accident. The number of lookups in
+ * progress is capped, and a query that would need one more while the cap is reached is
+ * answered with SERVFAIL at once, so a flood of queries for uncached names cannot start an
+ * unbounded number of lookups. A lookup counts until it has finished, even if its client was
+ * answered earlier with stale records.
+ */
+public class DNSServer {
+
+	public static final int DEFAULT_WORKER_COUNT = 4;
+	public static final int DEFAULT_MAX_PENDING_LOOKUPS = 1024;
+	// Without EDNS, a response over UDP is limited to 512 bytes
+	private static final int MAX_UDP_MESSAGE_SIZE = 512;
+	// With EDNS, responses are limited to the payload size of the client, up to this size
+	private static final int MAX_EDNS_MESSAGE_SIZE = DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE;
+	private static final int RECEIVE_BUFFER_SIZE = 1024;
+	private static final int HEADER_SIZE = 12;
+	private static final int MAX_CNAME_CHAIN = 16;
+	private static final int CLASS_IN = 1;
+	private static final int RCODE_FORMERR = 1;
+	private static final int RCODE_SERVFAIL = 2;
+	private static final int RCODE_NXDOMAIN = 3;
+	private static final int RCODE_NOTIMP = 4;
+
+	private final Resolver resolver;
+	private final DNSCache cache;
+	private final InetAddress bindAddress;
+	private final int port;
+	private final int workerCount;
+	private final Semaphore pendingLookups;
+	private final List<DatagramChannel> channels = new ArrayList<>();
+	private final List<Thread> workers = new ArrayList<>();
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a server listening on the loopback address, with the default cap on lookups.
+	 *
+	 * @param resolver    Resolver used for queries the cache cannot answer.
+	 * @param cache       Cache the resolver stores its results in.
+	 * @param port        UDP port to listen on, or 0 for any free port.
+	 * @param workerCount Number of threads receiving queries.
+	 */
+	public DNSServer(Resolver resolver, DNSCache cache, int port, int workerCount) {
+		this(resolver, cache, InetAddress.getLoopbackAddress(), port, workerCount, DEFAULT_MAX_PENDING_LOOKUPS);
+	}
+
+	/**
+	 * @param resolver          Resolver used for queries the cache cannot answer.
+	 * @param cache             Cache the resolver stores its results in.
+	 * @param bindAddress       Local address to listen on, or the wildcard address for all of them.
+	 * @param port              UDP port to listen on, or 0 for any free port.
+	 * @param workerCount       Number of threads receiving queries.
+	 * @param maxPendingLookups Number of lookups that may be in progress at once.
+	 */
+	public DNSServer(Resolver resolver, DNSCache cache, InetAddress bindAddress, int port, int workerCount, int maxPendingLookups) {
+		this.resolver = resolver;
+		this.cache = cache;
+		this.bindAddress = bindAddress;
+		this.port = port;
+		this.workerCount = workerCount;
+		this.pendingLookups = new Semaphore(maxPendingLookups);
+	}
+
+	/**
+	 * Binds the channels and starts the workers.
+	 *
+	 * @throws IOException if a channel could not be opened or bound
+	 */
+	public void start() throws IOException {
+		DatagramChannel first = DatagramChannel.open();
+		boolean reusePort = first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		if (reusePort)
+			first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		first.bind(new InetSocketAddress(bindAddress, port));
+		channels.add(first);
+		// With port 0, the other channels join the port the first one was given
+		int boundPort = getLocalPort();
+		for (int i = 1; reusePort && i < workerCount; i++) {
+			DatagramChannel channel = DatagramChannel.open();
+			channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			channel.bind(new InetSocketAddress(bindAddress, boundPort));
+			channels.add(channel);
+		}
+		for (int i = 0; i < workerCount; i++) {
+			DatagramChannel channel = channels.get(i % channels.size());
+			Thread worker = new Thread(() -> receiveLoop(channel), "dns-server-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	/**
+	 * @return The UDP port the server listens on.
+	 */
+	public int getLocalPort() throws IOException {
+		return ((InetSocketAddress) channels.get(0).getLocalAddress()).getPort();
+	}
+
+	/**
+	 * @return The number of channels the workers receive from: one per worker with SO_REUSEPORT,
+	 * or a single shared one.
+	 */
+	public int getChannelCount() {
+		return channels.size();
+	}
+
+	/**
+	 * Waits until the server has been closed and all of its workers have stopped.
+	 *
+	 * @throws InterruptedException if the calling thread is interrupted
+	 */
+	public void join() throws InterruptedException {
+		for (Thread worker : workers)
+			worker.join();
+	}
+
+	/**
+	 * Closes the channels, which stops the workers. Lookups in progress complete without
+	 * sending their response.
+	 */
+	public void close() {
+		closed = true;
+		for (DatagramChannel channel : channels) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Nothing more to release
+			}
+		}
+	}
+
+	private void receiveLoop(DatagramChannel channel) {
+		ByteBuffer query = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+		ByteBuffer response = ByteBuffer.allocate(MAX_EDNS_MESSAGE_SIZE);
+		while (!closed) {
+			SocketAddress client;
+			try {
+				query.clear();
+				client = channel.receive(query);
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				if (!closed)
+					System.err.println("Could not receive query (" + e.getMessage() + ").");
+				continue;
+			}
+			query.flip();
+			try {
+				handleQuery(channel, query, client, response);
+			} catch (RuntimeException e) {
+				System.err.println("Could not answer query from " + client + " (" + e + ").");
+			}
+		}
+	}
+
+	/**
+	 * Answers a query, at once if it is malformed or the cache can answer it, and otherwise
+	 * once the resolver has looked it up.
+	 *
+	 * @param response Buffer for a response sent by the calling thread
+	 */
+	private void handleQuery(DatagramChannel channel, ByteBuffer query, SocketAddress client, ByteBuffer response) {
+		if (query.remaining() < HEADER_SIZE)
+			return;
+		DNSHeader header = new DNSHeader();
+		header.decode(query);
+		// Responses are not answered, so two servers cannot keep answering each other
+		if (header.QR != 0)
+			return;
+		if (header.Opcode != 0) {
+			send(channel, client, errorResponse(header, null, RCODE_NOTIMP, response));
+			return;
+		}
+		DNSQuery question = new DNSQuery();
+		int payloadSize = 0;
+		try {
+			if (header.QDCOUNT != 1)
+				throw new MalformedResponseException("query with " + header.QDCOUNT + " questions");
+			NameResolver nameResolver = new NameResolver(query);
+			question.decode(query, nameResolver, header.QDCOUNT);
+			payloadSize = readEdnsPayloadSize(query, nameResolver, header);
+		} catch (MalformedResponseException | BufferUnderflowException | IndexOutOfBoundsException e) {
+			send(channel, client, errorResponse(header, null, RCODE_FORMERR, response));
+			return;
+		}
+		RecordType type = RecordType.getByCode(question.QTYPE);
+		if (question.QCLASS != CLASS_IN || !DNSMessageWriter.canEncode(type)) {
+			send(channel, client, errorResponse(header, question, RCODE_NOTIMP, response));
+			return;
+		}
+
+		DNSNode node = new DNSNode(question.QNAME, type);
+		int ednsPayloadSize = payloadSize;
+		ByteBuffer cached = cachedResponse(header, question, node, ednsPayloadSize, response, true);
+		if (cached != null) {
+			send(channel, client, cached);
+			return;
+		}
+		if (!pendingLookups.tryAcquire()) {
+			send(channel, client, errorResponse(header, question, RCODE_SERVFAIL, response));
+			return;
+		}
+		resolver.resolve(node, pendingLookups::release).whenComplete((results, e) -> {
+			ByteBuffer buffer = ByteBuffer.allocate(MAX_EDNS_MESSAGE_SIZE);
+			// The resolver has already counted this lookup
+			ByteBuffer resolved = cachedResponse(header, question, node, ednsPayloadSize, buffer, false);
+			if (resolved == null && e == null && !results.isEmpty()) {
+				// Stale records, which are not in the cache any more
+				DNSMessageWriter writer = newWriter(ednsPayloadSize, buffer);
+				writer.writeQuestion(question);
+				for (ResourceRecord record : results)
+					writer.addAnswer(record);
+				resolved = writer.finish(responseHeader(header, 0));
+			}
+			if (resolved == null)
+				resolved = errorResponse(header, question, RCODE_SERVFAIL, buffer);
+			send(channel, client, resolved);
+		});
+	}
+
+	/**
+	 * Builds the response to a query from the cache: the CNAME chain of the name and the records
+	 * it leads to, or a negative answer.
+	 *
+	 * @param ednsPayloadSize UDP payload size advertised by the client, or 0 without EDNS
+	 * @param clientRead      true to count the reads of the chain as client reads, which drive
+	 *                        the cache statistics and refreshing, if the cache answers the query;
+	 *                        a query it cannot answer is counted by the resolver instead
+	 * @return The response, or null if the cache has neither records nor a negative answer.
+	 */
+	private ByteBuffer cachedResponse(DNSHeader header, DNSQuery question, DNSNode node, int ednsPayloadSize, ByteBuffer buffer, boolean clientRead) {
+		List<ResourceRecord> answers = new ArrayList<>();
+		List<DNSNode> reads = new ArrayList<>();
+		DNSNode current = node;
+		for (int i = 0; i < MAX_CNAME_CHAIN; i++) {
+			Set<ResourceRecord> records = cache.peekCachedResults(current);
+			reads.add(current);
+			if (!records.isEmpty()) {
+				answers.addAll(records);
+				break;
+			}
+			if (current.getType() == RecordType.CNAME)
+				break;
+			DNSNode cnameNode = new DNSNode(current.getHostName(), RecordType.CNAME);
+			Set<ResourceRecord> cnames = cache.peekCachedResults(cnameNode);
+			if (cnames.isEmpty())
+				break;
+			reads.add(cnameNode);
+			ResourceRecord cname = cnames.iterator().next();
+			answers.add(cname);
+			current = new DNSNode(cname.getTextResult(), node.getType());
+		}
+
+		boolean complete = !answers.isEmpty() && answers.get(answers.size() - 1).getNode().equals(current);
+		if (!complete && !cache.isNegative(current))
+			return null;
+		if (clientRead) {
+			for (DNSNode read : reads)
+				cache.getCachedResults(read);
+		}
+
+		DNSMessageWriter writer = newWriter(ednsPayloadSize, buffer);
+		writer.writeQuestion(question);
+		for (ResourceRecord record : answers)
+			writer.addAnswer(record);
+		int rcode = 0;
+		if (!complete) {
+			if (cache.isNameError(current.getHostName()))
+				rcode = RCODE_NXDOMAIN;
+			ResourceRecord soa = findSOA(current.getHostName());
+			if (soa != null)
+				writer.addAuthority(soa);
+		}
+		return writer.finish(responseHeader(header, rcode));
+	}
+
+	/**
+	 * Finds the cached SOA record of the closest zone enclosing a name.
+	 *
+	 * @return The SOA record, or null if none of the enclosing zones has one cached.
+	 */
+	private ResourceRecord findSOA(String hostName) {
+		String zone = hostName;
+		while (true) {
+			Set<ResourceRecord> soa = cache.peekCachedResults(new DNSNode(zone, RecordType.SOA));
+			if (!soa.isEmpty())
+				return soa.iterator().next();
+			if (zone.isEmpty())
+				return null;
+			int dot = zone.indexOf('.');
+			zone = dot < 0 ? "" : zone.substring(dot + 1);
+		}
+	}
+
+	/**
+	 * Reads the UDP payload size from the OPT record of a query, which follows the question.
+	 *
+	 * @return The payload size, at least 512, or 0 if the query has no OPT record.
+	 */
+	private static int readEdnsPayloadSize(ByteBuffer query, NameResolver nameResolver, DNSHeader header) throws MalformedResponseException {
+		if (header.ANCOUNT != 0 || header.NSCOUNT != 0 || header.ARCOUNT != 1)
+			return 0;
+		DNSAnswer opt = new DNSAnswer();
+		opt.decode(query, nameResolver);
+		if (opt.TYPE != DNSQueryHandler.TYPE_OPT)
+			return 0;
+		return Math.max(MAX_UDP_MESSAGE_SIZE, opt.CLASS);
+	}
+
+	/**
+	 * Starts a response in a buffer, limited to the size the client can receive.
+	 */
+	private static DNSMessageWriter newWriter(int ednsPayloadSize, ByteBuffer buffer) {
+		buffer.clear();
+		if (ednsPayloadSize == 0) {
+			buffer.limit(MAX_UDP_MESSAGE_SIZE);
+			return new DNSMessageWriter(buffer);
+		}
+		buffer.limit(Math.min(ednsPayloadSize, MAX_EDNS_MESSAGE_SIZE));
+		DNSMessageWriter writer = new DNSMessageWriter(buffer);
+		writer.setEdns(MAX_EDNS_MESSAGE_SIZE);
+		return writer;
+	}
+
+	private static ByteBuffer errorResponse(DNSHeader header, DNSQuery question, int rcode, ByteBuffer buffer) {
+		DNSMessageWriter writer = newWriter(0, buffer);
+		if (question != null)
+			writer.writeQuestion(question);
+		DNSHeader response = responseHeader(header, rcode);
+		response.QDCOUNT = question != null ? 1 : 0;
+		return writer.finish(response);
+	}
+
+	private static DNSHeader responseHeader(DNSHeader query, int rcode) {
+		return new DNSHeader(query.ID, 1, query.Opcode, 0, 0, query.RD, 1, 0, rcode, 1, 0, 0, 0);
+	}
+
+	private static void send(DatagramChannel channel, SocketAddress client, ByteBuffer response) {
+		try {
+			channel.send(response, client);
+		} catch (IOException e) {
+			// The client will retry; a closed channel means the server is stopping
+		}
+	}
+}
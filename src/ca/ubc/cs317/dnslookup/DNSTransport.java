@@ -0,0 +1,31 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A transport sends encoded DNS queries to servers and hands back the matching responses.
+ * Implementations may keep any number of queries in flight at once; responses are matched
+ * to their queries by server, port and transaction ID.
+ */
+public interface DNSTransport {
+
+	/**
+	 * Sends a query and returns a future completed with the response.
+	 *
+	 * @param query         Encoded query, from its position to its limit. The transport is done with
+	 *                      it when this method returns, so the caller may reuse the buffer.
+	 * @param server        The IP address of the server to which the query is being sent.
+	 * @param port          The port of the server.
+	 * @param transactionID The id written in the header of the query.
+	 * @param timeoutMillis Time to wait for the response before the future fails with a TimeoutException.
+	 * @return A future completed with the response buffer, or failed if the query could not be sent or timed out.
+	 */
+	CompletableFuture<ByteBuffer> send(ByteBuffer query, InetAddress server, int port, int transactionID, long timeoutMillis);
+
+	/**
+	 * Closes the transport. Queries still in flight fail.
+	 */
+	void close();
+}
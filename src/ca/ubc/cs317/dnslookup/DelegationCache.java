@@ -0,0 +1,89 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the zone cuts met while resolving: for every zone, the names of its nameservers and
+ * their addresses. A lookup starts at the deepest zone cut known for its name instead of at the
+ * root, so once the nameservers of com and example.com are known, a miss for foo.example.com
+ * only costs a query to the example.com servers.
+ *
+ * A delegation expires with the first of its NS and address records.
+ */
+public class DelegationCache {
+
+	private static final int MAX_ZONES = 100_000;
+
+	private final Map<String, Delegation> delegations = new ConcurrentHashMap<>();
+
+	/**
+	 * Records the nameservers of a zone.
+	 *
+	 * @param zone           Name of the zone, as the owner name of its NS records.
+	 * @param nameservers    Host names of the nameservers of the zone.
+	 * @param addresses      Addresses of those nameservers; nothing is cached if this is empty.
+	 * @param expirationTime Time, in milliseconds since the epoch, at which the first of the records expires.
+	 */
+	public void put(String zone, List<String> nameservers, List<InetAddress> addresses, long expirationTime) {
+		if (addresses.isEmpty() || expirationTime <= System.currentTimeMillis())
+			return;
+		if (delegations.size() >= MAX_ZONES) {
+			long now = System.currentTimeMillis();
+			delegations.values().removeIf(d -> d.expirationTime() <= now);
+			if (delegations.size() >= MAX_ZONES)
+				delegations.clear();
+		}
+		String key = zone.toLowerCase(Locale.ROOT);
+		delegations.put(key, new Delegation(key, List.copyOf(nameservers), List.copyOf(addresses), expirationTime));
+	}
+
+	/**
+	 * Finds the deepest zone cut above, or at, a host name. Expired delegations met on the way are
+	 * removed.
+	 *
+	 * @param hostName Name being resolved.
+	 * @return The delegation of the closest enclosing zone, or null if none is cached.
+	 */
+	public Delegation findClosest(String hostName) {
+		long now = System.currentTimeMillis();
+		String zone = hostName.toLowerCase(Locale.ROOT);
+		while (true) {
+			Delegation delegation = delegations.get(zone);
+			if (delegation != null) {
+				if (delegation.expirationTime() > now)
+					return delegation;
+				delegations.remove(zone, delegation);
+			}
+			int dot = zone.indexOf('.');
+			if (dot < 0)
+				return null;
+			zone = zone.substring(dot + 1);
+		}
+	}
+
+	/**
+	 * Forgets a delegation, for example because none of its nameservers answered.
+	 *
+	 * @param delegation Delegation to remove.
+	 */
+	public void remove(Delegation delegation) {
+		delegations.remove(delegation.zone(), delegation);
+	}
+
+	/**
+	 * Forgets every delegation, for example when the root server changes.
+	 */
+	public void clear() {
+		delegations.clear();
+	}
+
+	/**
+	 * The nameservers of a zone and their addresses.
+	 */
+	public record Delegation(String zone, List<String> nameservers, List<InetAddress> addresses, long expirationTime) {
+	}
+}
@@ -1,10 +1,44 @@
 package ca.ubc.cs317.dnslookup;
 
 /**
- * This class represents an exception when the response contains invalid flag
+ * This class represents an exception when the response contains invalid flag, such as a name
+ * error (NXDOMAIN) or an authoritative answer with no records (NODATA)
  */
 public class FlagException extends Exception{
-	public FlagException() {
+	private final int rcode;
+	private final long negativeTTL;
+	private final String negativeZone;
+
+	/**
+	 * @param rcode        Response code of the response
+	 * @param negativeTTL  Time the negative answer may be cached for, from the SOA record of the
+	 *                     authority section, or -1 if the response has no SOA record
+	 * @param negativeZone Owner of that SOA record, the zone the negative answer comes from, or
+	 *                     null if the response has no SOA record
+	 */
+	public FlagException(int rcode, long negativeTTL, String negativeZone) {
 		super("Flag exception in response");
+		this.rcode = rcode;
+		this.negativeTTL = negativeTTL;
+		this.negativeZone = negativeZone;
+	}
+
+	public int getRcode() {
+		return rcode;
+	}
+
+	/**
+	 * @return true if the name does not exist (NXDOMAIN), false if only the requested type does not (NODATA)
+	 */
+	public boolean isNameError() {
+		return rcode == 3;
+	}
+
+	public long getNegativeTTL() {
+		return negativeTTL;
+	}
+
+	public String getNegativeZone() {
+		return negativeZone;
 	}
 }
@@ -0,0 +1,95 @@
+package ca.ubc.cs317.dnslookup;
+
+/**
+ * A count-min sketch estimating how often each key has been seen recently. Every key maps to
+ * four 4-bit counters packed into longs, and its frequency is the smallest of the four. Once
+ * the number of increments reaches ten times the capacity, every counter is halved, so old
+ * popularity fades and the estimate follows the recent workload.
+ *
+ * This class is not thread-safe; callers synchronize access.
+ */
+final class FrequencySketch {
+
+	private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final int MAXIMUM_CAPACITY = 1 << 24;
+
+	private final long[] table;
+	private final int tableMask;
+	private final int sampleSize;
+	private int size;
+
+	/**
+	 * @param capacity Expected number of distinct keys; the table is sized to the next power of two.
+	 */
+	FrequencySketch(long capacity) {
+		int length = Integer.highestOneBit((int) Math.max(16, Math.min(capacity, MAXIMUM_CAPACITY)) - 1) << 1;
+		table = new long[length];
+		tableMask = length - 1;
+		sampleSize = 10 * length;
+	}
+
+	/**
+	 * Returns the estimated number of recent occurrences of the key, between 0 and 15.
+	 *
+	 * @param key Key whose frequency is estimated.
+	 * @return The estimated frequency.
+	 */
+	int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			long value = table[indexOf(hash, i)] >>> (offsetOf(hash, i) << 2);
+			frequency = Math.min(frequency, (int) (value & 0xF));
+		}
+		return frequency;
+	}
+
+	/**
+	 * Increments the counters of the key, ageing the whole sketch when the sample is full.
+	 *
+	 * @param key Key that was seen.
+	 */
+	void increment(Object key) {
+		int hash = spread(key.hashCode());
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			added |= incrementAt(indexOf(hash, i), offsetOf(hash, i));
+		}
+		if (added && ++size >= sampleSize) {
+			reset();
+		}
+	}
+
+	private boolean incrementAt(int index, int offset) {
+		long mask = 0xFL << (offset << 2);
+		if ((table[index] & mask) != mask) {
+			table[index] += 1L << (offset << 2);
+			return true;
+		}
+		return false;
+	}
+
+	private void reset() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		size /= 2;
+	}
+
+	private int indexOf(int hash, int i) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return (int) h & tableMask;
+	}
+
+	private static int offsetOf(int hash, int i) {
+		return (((hash >>> (i << 3)) & 3) << 2) + i;
+	}
+
+	private static int spread(int hash) {
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		return (hash >>> 16) ^ hash;
+	}
+}
@@ -0,0 +1,79 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * State of a single lookup, threaded through every step of its resolution: the queries for
+ * the nameservers it needs, and the CNAME targets it follows.
+ *
+ * A lookup has a total deadline, shared by all of its queries. Once it has passed, no more
+ * queries are sent and the lookup ends with whatever has been cached so far.
+ *
+ * The context also holds the chain of nodes the lookup is resolving itself, such as the name
+ * it was asked for and the nameserver names it needs on the way. A lookup that needs a node
+ * already in its own chain is in a cycle, and must not wait for itself. The context also
+ * records the lookup it is waiting for, if any, so that the resolver can tell when lookups
+ * waiting for each other would form a cycle.
+ */
+public class LookupContext {
+
+	private final long deadline;
+	private final Set<DNSNode> resolving = new HashSet<>();
+	private volatile LookupContext waitingFor;
+
+	/**
+	 * @param timeoutMillis Time the whole lookup may take, in milliseconds.
+	 */
+	public LookupContext(long timeoutMillis) {
+		this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+
+	/**
+	 * @return The time left before the deadline, in milliseconds; zero or less once it has passed.
+	 */
+	public long getRemainingMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+	}
+
+	/**
+	 * @return true if the deadline of the lookup has passed.
+	 */
+	public boolean isExpired() {
+		return deadline - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * Adds a node to the chain of nodes this lookup is resolving.
+	 *
+	 * @param node Node the lookup starts resolving.
+	 * @return false if the node was already in the chain.
+	 */
+	public boolean enter(DNSNode node) {
+		return resolving.add(node);
+	}
+
+	/**
+	 * Removes a node from the chain once the lookup is done resolving it.
+	 *
+	 * @param node Node the lookup has resolved.
+	 */
+	public void leave(DNSNode node) {
+		resolving.remove(node);
+	}
+
+	/**
+	 * @return The lookup this lookup is waiting for, or null if it is not waiting.
+	 */
+	public LookupContext getWaitingFor() {
+		return waitingFor;
+	}
+
+	/**
+	 * @param waitingFor The lookup this lookup starts waiting for, or null once it stops.
+	 */
+	public void setWaitingFor(LookupContext waitingFor) {
+		this.waitingFor = waitingFor;
+	}
+}
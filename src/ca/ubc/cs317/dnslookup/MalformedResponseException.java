@@ -0,0 +1,15 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+
+/**
+ * This class represents an exception when the response cannot be decoded, for example because a
+ * name is too long or its compression pointers loop
+ */
+public class MalformedResponseException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public MalformedResponseException(String message) {
+		super("Malformed response: " + message);
+	}
+}
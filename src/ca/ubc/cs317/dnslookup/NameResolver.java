@@ -1,45 +1,161 @@
 package ca.ubc.cs317.dnslookup;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 
 /**
- * This class is responsible for resolving a name from the response
+ * This class is responsible for resolving names from a response. One instance is used per
+ * message: every name it decodes is remembered by the offset of each of its labels, so the
+ * suffixes that other names point to (such as "com" or "gtld-servers.net") are only decoded
+ * once and the same String is shared by every record that uses them.
  */
 public class NameResolver {
+	// A name is at most 255 bytes long, so it cannot take more jumps than that
+	private static final int MAX_POINTER_HOPS = 127;
+	private static final int MAX_NAME_LENGTH = 255;
+	// Pointers are 14 bits wide, so only labels before this offset can be pointed to
+	private static final int MAX_POINTER_OFFSET = 0x4000;
+
+	private final ByteBuffer buffer;
+	private final StringBuilder sb = new StringBuilder();
+	private final int[] labelOffsets = new int[MAX_NAME_LENGTH / 2 + 2];
+	private final int[] labelStarts = new int[MAX_NAME_LENGTH / 2 + 2];
+	// Offset just past the last name read, as it is written where it starts
+	private int nameEnd;
+	private int[] memoOffsets = new int[64];
+	private String[] memoNames = new String[64];
+	private int memoSize = 0;
+
+	/**
+	 * @param buffer ByteBuffer holding the whole response
+	 */
+	public NameResolver(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * This function resolves the name at the current position of the response, it handles different
+	 * cases when there is a pointer/label. The position of the buffer is moved past the name.
+	 *
+	 * @return String that represents the name, without the trailing dot (empty for the root)
+	 * @throws MalformedResponseException if the name is too long or its pointers do not point backwards
+	 */
+	public String getName() throws MalformedResponseException {
+		String name = readName(buffer.position());
+		buffer.position(nameEnd);
+		return name;
+	}
+
+	/**
+	 * This function resolves the name that starts at a given offset of the response, without
+	 * moving the position of the buffer.
+	 *
+	 * @param offset Absolute offset of the first label of the name
+	 * @return String that represents the name, without the trailing dot (empty for the root)
+	 * @throws MalformedResponseException if the name is too long or its pointers do not point backwards
+	 */
+	public String getName(int offset) throws MalformedResponseException {
+		return readName(offset);
+	}
+
 	/**
-	 * This function resolves the name in a response, it handles different cases when there is a pointer/label
+	 * Decodes a name iteratively. Every pointer must point before itself and the number of jumps
+	 * is limited, so a crafted pointer cycle is rejected instead of looping.
 	 *
-	 * @param inputStream DataInputStream
-	 * @param responseBuffer byte[]
-	 * @return String that represents the name
-	 * @throws IOException if an IO Exception occurs
+	 * @param offset Absolute offset of the first label of the name
 	 */
-	public static String getName(DataInputStream inputStream, byte[] responseBuffer) throws IOException {
-		StringBuilder sb = new StringBuilder();
-		inputStream.mark(1);
-		int length = inputStream.readUnsignedByte();
-		while (length != 0) {
-			if ((length & 0b11000000) != 0) {
-				// Reset the buffer to re-read the byte
-				inputStream.reset();
-				short offset = (short) (inputStream.readUnsignedShort() & 0x3FFF);
-				ByteArrayInputStream ptrInputStream = new ByteArrayInputStream(responseBuffer, offset,
-						responseBuffer.length - offset);
-				DataInputStream dataInputStream = new DataInputStream(ptrInputStream);
-				sb.append(getName(dataInputStream, responseBuffer));
+	private String readName(int offset) throws MalformedResponseException {
+		sb.setLength(0);
+		int labels = 0;
+		int hops = 0;
+		String suffix = null;
+		int position = offset;
+		while (true) {
+			int length = buffer.get(position) & 0xFF;
+			if (length == 0) {
+				if (hops == 0)
+					nameEnd = position + 1;
 				break;
-			} else {
-				byte[] bytes = new byte[length];
-				inputStream.read(bytes, 0, length);
-				sb.append(new String(bytes, StandardCharsets.UTF_8));
-				sb.append(".");
-				inputStream.mark(1);
-				length = inputStream.readUnsignedByte();
 			}
+			if ((length & 0b11000000) == 0b11000000) {
+				if (hops == 0)
+					nameEnd = position + 2;
+				int pointer = buffer.getShort(position) & 0x3FFF;
+				if (pointer >= position || ++hops > MAX_POINTER_HOPS)
+					throw new MalformedResponseException("compression pointer loop at offset " + position);
+				suffix = lookup(pointer);
+				if (suffix != null)
+					break;
+				position = pointer;
+				continue;
+			}
+			if ((length & 0b11000000) != 0)
+				throw new MalformedResponseException("unknown label type at offset " + position);
+
+			labelOffsets[labels] = position;
+			labelStarts[labels] = sb.length() == 0 ? 0 : sb.length() + 1;
+			labels++;
+			if (sb.length() > 0)
+				sb.append('.');
+			for (int i = 1; i <= length; i++)
+				sb.append((char) (buffer.get(position + i) & 0xFF));
+			if (sb.length() > MAX_NAME_LENGTH)
+				throw new MalformedResponseException("name longer than " + MAX_NAME_LENGTH + " bytes at offset " + offset);
+			position += length + 1;
+		}
+
+		String name;
+		if (suffix == null)
+			name = sb.toString();
+		else if (sb.length() == 0)
+			name = suffix;
+		else
+			name = sb.append('.').append(suffix).toString();
+		if (name.length() > MAX_NAME_LENGTH)
+			throw new MalformedResponseException("name longer than " + MAX_NAME_LENGTH + " bytes at offset " + offset);
+		for (int i = 0; i < labels; i++) {
+			if (labelOffsets[i] < MAX_POINTER_OFFSET)
+				remember(labelOffsets[i], labelStarts[i] == 0 ? name : name.substring(labelStarts[i]));
 		}
-		return sb.toString();
+		return name;
+	}
+
+	private String lookup(int offset) {
+		int mask = memoOffsets.length - 1;
+		for (int i = hash(offset) & mask; memoNames[i] != null; i = (i + 1) & mask) {
+			if (memoOffsets[i] == offset)
+				return memoNames[i];
+		}
+		return null;
+	}
+
+	private void remember(int offset, String name) {
+		if (2 * (memoSize + 1) > memoOffsets.length)
+			grow();
+		int mask = memoOffsets.length - 1;
+		int i = hash(offset) & mask;
+		while (memoNames[i] != null) {
+			if (memoOffsets[i] == offset)
+				return;
+			i = (i + 1) & mask;
+		}
+		memoOffsets[i] = offset;
+		memoNames[i] = name;
+		memoSize++;
+	}
+
+	private void grow() {
+		int[] offsets = memoOffsets;
+		String[] names = memoNames;
+		memoOffsets = new int[offsets.length * 2];
+		memoNames = new String[names.length * 2];
+		memoSize = 0;
+		for (int i = 0; i < names.length; i++) {
+			if (names[i] != null)
+				remember(offsets[i], names[i]);
+		}
+	}
+
+	private static int hash(int offset) {
+		return offset * 0x9E3779B1 >>> 16;
 	}
 }
@@ -6,6 +6,8 @@ package ca.ubc.cs317.dnslookup;
 public enum RecordType {
     A(1), NS(2), CNAME(5), SOA(6), MX(15), AAAA(28), OTHER(0);
 
+    private static final RecordType[] VALUES = values();
+
     private int code;
 
     RecordType(int code) {
@@ -23,7 +25,7 @@ public enum RecordType {
      * @return A record type that uses the specified code, or OTHER if no record type uses the code.
      */
     public static RecordType getByCode(int code) {
-        for (RecordType type : values())
+        for (RecordType type : VALUES)
             if (type.code == code)
                 return type;
         return OTHER;
@@ -0,0 +1,97 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The nameservers named in the authority section of a response, each bound to the glue address
+ * records found for it in the additional section of the same response.
+ *
+ * A referral is for a single zone, the owner of its NS records. If the NS records have different
+ * owners, the referral has no zone, and must not be followed. Glue is only taken for the
+ * nameservers whose names are in that zone, since the server giving the referral has no
+ * authority over other names; nameservers outside it are resolved by lookups of their own.
+ */
+public class Referral {
+
+	private final List<ResourceRecord> nameServers = new ArrayList<>();
+	private final Map<String, List<ResourceRecord>> glue = new HashMap<>();
+	private String zone;
+	private boolean mixedZones = false;
+
+	/**
+	 * @param authority  Records of the authority section.
+	 * @param additional Records of the additional section.
+	 */
+	public Referral(Set<ResourceRecord> authority, Set<ResourceRecord> additional) {
+		for (ResourceRecord record : authority) {
+			if (record.getType() == RecordType.NS) {
+				String owner = record.getHostName().toLowerCase(Locale.ROOT);
+				if (zone == null)
+					zone = owner;
+				else if (!zone.equals(owner))
+					mixedZones = true;
+				nameServers.add(record);
+				glue.put(record.getTextResult().toLowerCase(Locale.ROOT), new ArrayList<>());
+			}
+		}
+		String glueZone = getZone();
+		for (ResourceRecord record : additional) {
+			if (record.getType() != RecordType.A || glueZone == null || !isInZone(record.getHostName(), glueZone))
+				continue;
+			List<ResourceRecord> addresses = glue.get(record.getHostName().toLowerCase(Locale.ROOT));
+			if (addresses != null)
+				addresses.add(record);
+		}
+	}
+
+	/**
+	 * @return The zone the referral delegates, in lower case, or null if the referral has no NS
+	 * records or has NS records for more than one zone.
+	 */
+	public String getZone() {
+		return mixedZones ? null : zone;
+	}
+
+	/**
+	 * Returns true if a name is a zone or is below it. Every name is in the root zone, written
+	 * as the empty string.
+	 *
+	 * @param name Host name to check; a trailing dot is ignored.
+	 * @param zone Name of the zone, without a trailing dot.
+	 * @return true if the name is equal to the zone or a subdomain of it, ignoring case.
+	 */
+	public static boolean isInZone(String name, String zone) {
+		if (zone.isEmpty())
+			return true;
+		int end = name.endsWith(".") ? name.length() - 1 : name.length();
+		int start = end - zone.length();
+		return start >= 0 && name.regionMatches(true, start, zone, 0, zone.length())
+				&& (start == 0 || name.charAt(start - 1) == '.');
+	}
+
+	/**
+	 * @return The NS records of the referral, in the order of the response.
+	 */
+	public List<ResourceRecord> getNameServers() {
+		return nameServers;
+	}
+
+	/**
+	 * Returns the glue address records given for a nameserver. Only records in the additional
+	 * section whose owner is one of the nameservers of the referral, inside the zone of the
+	 * referral, are kept.
+	 *
+	 * @param nameServer Host name of the nameserver.
+	 * @return A potentially empty list of A records.
+	 */
+	public List<ResourceRecord> getGlue(String nameServer) {
+		List<ResourceRecord> addresses = glue.get(nameServer.toLowerCase(Locale.ROOT));
+		return addresses == null ? Collections.emptyList() : addresses;
+	}
+}
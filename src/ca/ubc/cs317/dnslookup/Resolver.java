@@ -0,0 +1,793 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * An iterative DNS resolver. All the state of a resolver is held by the instance: the cache and
+ * transport it was given, the zone cuts and server round trip times it has learnt, and the
+ * resolutions it has in progress. Each lookup carries its own LookupContext, so any number of
+ * lookups may run on the same resolver at once, and several resolvers may share a JVM.
+ *
+ * The resolver registers itself as the refresh handler of its cache, so that nodes read often
+ * are resolved again in the background shortly before they expire. When a lookup fails, or is
+ * still in progress after the client response timeout, it is answered with the stale records
+ * kept by the cache, if there are any, while the lookup goes on in the background.
+ *
+ * Queries advertise EDNS(0) with a UDP payload size of DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE,
+ * so large referrals arrive whole. A server that rejects EDNS with a format error is asked
+ * again without it, and a response that is still truncated is fetched again over TCP. The
+ * configuration may also ask for every query to be sent over TCP.
+ */
+public class Resolver {
+
+	// Zone of the root servers, which every name is in
+	private static final String ROOT_ZONE = "";
+	private static final int QUERY_RESEND_MAX_ATTEMPTS = 10;
+	private static final int MIN_HEDGE_DELAY_MILLIS = 50;
+	private static final int MAX_HEDGE_DELAY_MILLIS = 5000;
+	private static final int TCP_QUERY_TIMEOUT_MILLIS = 5000;
+	// Platform threads lookups run on where virtual threads are not available
+	private static final int DEFAULT_POOL_SIZE = 256;
+
+	// Settings copied from the configuration, which may change after the resolver is created
+	private final int port;
+	private final long lookupTimeoutMillis;
+	private final int maxIndirectionLevel;
+	private final int maxReferralLevels;
+	private final long clientResponseTimeoutMillis;
+	private final boolean tcpOnly;
+	private final DNSCache cache;
+	private final DNSTransport transport;
+	private final DNSTransport tcpTransport;
+	// TCP transport created by this resolver, closed by close
+	private final TCPTransport ownTcpTransport;
+	private final Executor executor;
+	// Executor created by this resolver, shut down by close
+	private final ExecutorService ownExecutor;
+	// Kept, so that close only removes the handler of this resolver
+	private final Consumer<DNSNode> refreshHandler = this::refresh;
+	private final DelegationCache delegations = new DelegationCache();
+	// Round trip statistics of every server queried, shared by all lookups
+	private final ServerPerformanceTable serverPerformance = new ServerPerformanceTable();
+	// Resolutions in progress, completed once their results are cached
+	private final Map<DNSNode, Resolution> inFlight = new ConcurrentHashMap<>();
+	// Guards the lookups each lookup waits for, so that two lookups cannot start waiting for
+	// each other at the same time
+	private final Object waitLock = new Object();
+	private volatile InetAddress rootServer;
+	private volatile boolean verboseTracing;
+
+	/**
+	 * @param config    Settings of the resolver.
+	 * @param cache     Cache results are stored in, and read from.
+	 * @param transport Transport queries are sent with. It is not closed by the resolver.
+	 */
+	public Resolver(ResolverConfig config, DNSCache cache, DNSTransport transport) {
+		this(config, cache, transport, null);
+	}
+
+	/**
+	 * @param config       Settings of the resolver.
+	 * @param cache        Cache results are stored in, and read from.
+	 * @param transport    Transport queries are sent with. It is not closed by the resolver.
+	 * @param tcpTransport Transport truncated responses are fetched again with, and every query
+	 *                     is sent with if the configuration asks for TCP only; or null for a
+	 *                     TCPTransport created and closed by the resolver.
+	 */
+	public Resolver(ResolverConfig config, DNSCache cache, DNSTransport transport, DNSTransport tcpTransport) {
+		this.port = config.getPort();
+		this.lookupTimeoutMillis = config.getLookupTimeoutMillis();
+		this.maxIndirectionLevel = config.getMaxIndirectionLevel();
+		this.maxReferralLevels = config.getMaxReferralLevels();
+		this.clientResponseTimeoutMillis = config.getClientResponseTimeoutMillis();
+		this.tcpOnly = config.isTcpOnly();
+		this.cache = cache;
+		this.transport = transport;
+		this.ownTcpTransport = tcpTransport == null ? new TCPTransport() : null;
+		this.tcpTransport = tcpTransport == null ? ownTcpTransport : tcpTransport;
+		this.rootServer = config.getRootServer();
+		this.verboseTracing = config.isVerboseTracing();
+		if (config.getExecutor() != null) {
+			this.ownExecutor = null;
+			this.executor = config.getExecutor();
+		} else {
+			this.ownExecutor = newDefaultExecutor();
+			this.executor = ownExecutor;
+		}
+		cache.setRefreshAhead(config.getRefreshAheadFraction(), config.getRefreshMinimumHits());
+		cache.setStaleWindow(config.getStaleWindowMillis());
+		cache.setRefreshHandler(refreshHandler);
+	}
+
+	/**
+	 * Finds all results for a node, following CNAME records. The lookup runs on the executor of
+	 * the resolver. With virtual threads, the default executor starts every lookup at once, so
+	 * callers that may start many lookups should bound how many they have in progress, as the
+	 * batch mode and DNSServer do.
+	 *
+	 * If the lookup finds nothing, or has not finished within the client response timeout, the
+	 * future is completed with the stale records of the node instead, if the cache still has
+	 * some. The lookup then goes on, and its results are cached for later lookups.
+	 *
+	 * @param node Host and record type to be used for search.
+	 * @return A future completed with a potentially empty set of results, once the lookup has
+	 * finished, its deadline has passed, or stale results have been served; or failed with an
+	 * IllegalArgumentException if the name of the node is too long to be queried.
+	 */
+	public CompletableFuture<Set<ResourceRecord>> resolve(DNSNode node) {
+		return resolve(node, null);
+	}
+
+	/**
+	 * Finds all results for a node, as resolve(DNSNode) does, and runs an action once the lookup
+	 * itself has finished. That may be after the returned future has been completed with stale
+	 * records, so callers that bound the number of lookups in progress should count them until
+	 * then.
+	 *
+	 * @param node           Host and record type to be used for search.
+	 * @param lookupFinished Action run once the lookup has finished, or null for none.
+	 * @return A future completed as by resolve(DNSNode).
+	 */
+	public CompletableFuture<Set<ResourceRecord>> resolve(DNSNode node, Runnable lookupFinished) {
+		try {
+			DNSQuery.checkName(node.getHostName());
+		} catch (IllegalArgumentException e) {
+			if (lookupFinished != null)
+				lookupFinished.run();
+			return CompletableFuture.failedFuture(e);
+		}
+		Set<ResourceRecord> cached = getCachedAnswer(node);
+		if (!cached.isEmpty()) {
+			if (lookupFinished != null)
+				lookupFinished.run();
+			return CompletableFuture.completedFuture(cached);
+		}
+		CompletableFuture<Set<ResourceRecord>> lookup =
+				CompletableFuture.supplyAsync(() -> getResults(node, 0, new LookupContext(lookupTimeoutMillis)), executor);
+		CompletableFuture<Set<ResourceRecord>> answer = new CompletableFuture<>();
+		lookup.whenComplete((results, e) -> {
+			try {
+				if (e == null && !results.isEmpty()) {
+					answer.complete(results);
+					return;
+				}
+				// A name known not to exist is not answered with stale records
+				Set<ResourceRecord> stale = cache.isNegative(node) ? Collections.emptySet() : getStaleResults(node);
+				if (!stale.isEmpty() || e == null)
+					answer.complete(stale.isEmpty() ? results : stale);
+				else
+					answer.completeExceptionally(e);
+			} finally {
+				// After the answer, so the actions of the caller on the answer have run by then
+				if (lookupFinished != null)
+					lookupFinished.run();
+			}
+		});
+		if (clientResponseTimeoutMillis > 0 && !answer.isDone()) {
+			CompletableFuture.delayedExecutor(clientResponseTimeoutMillis, TimeUnit.MILLISECONDS).execute(() -> {
+				if (!answer.isDone()) {
+					Set<ResourceRecord> stale = getStaleResults(node);
+					if (!stale.isEmpty())
+						answer.complete(stale);
+				}
+			});
+		}
+		return answer;
+	}
+
+	public InetAddress getRootServer() {
+		return rootServer;
+	}
+
+	/**
+	 * Changes the root server lookups start at. Zone cuts learnt from the previous root are
+	 * forgotten.
+	 *
+	 * @param rootServer The IP address of the new root DNS server.
+	 */
+	public void setRootServer(InetAddress rootServer) {
+		this.rootServer = rootServer;
+		delegations.clear();
+	}
+
+	/**
+	 * Turns the printing of every query and response of this resolver on or off.
+	 *
+	 * @param verboseTracing true to print queries and responses.
+	 */
+	public void setVerboseTracing(boolean verboseTracing) {
+		this.verboseTracing = verboseTracing;
+	}
+
+	/**
+	 * Stops the executor and closes the TCP transport of the resolver, if it created them, and
+	 * stops refreshing the cache, unless another resolver refreshes it now. The cache and the
+	 * other transports are left to their owner.
+	 */
+	public void close() {
+		cache.removeRefreshHandler(refreshHandler);
+		if (ownExecutor != null)
+			ownExecutor.shutdown();
+		if (ownTcpTransport != null)
+			ownTcpTransport.close();
+	}
+
+	/**
+	 * Resolves a node again in the background, whether or not it is cached, so that its records
+	 * are replaced before they expire. Nothing is done if the node is already being resolved.
+	 *
+	 * @param node Host and record type to be refreshed.
+	 */
+	private void refresh(DNSNode node) {
+		// Registered once it runs, so no lookup waits for a refresh still queued for a thread
+		Runnable task = () -> {
+			LookupContext context = new LookupContext(lookupTimeoutMillis);
+			Resolution resolution = new Resolution(new CompletableFuture<>(), context);
+			if (inFlight.putIfAbsent(node, resolution) != null)
+				return;
+			context.enter(node);
+			try {
+				retrieveResultsFromClosestServers(node, context);
+			} finally {
+				inFlight.remove(node, resolution);
+				resolution.done().complete(null);
+			}
+		};
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// The resolver has been closed
+		}
+	}
+
+	/**
+	 * Reads the answer to a lookup from the cache, following cached CNAME records. These are the
+	 * reads made on behalf of the client, so they are the ones counted by the cache, for its
+	 * statistics and for refreshing nodes ahead of their expiration; every other read of the
+	 * resolver only peeks.
+	 *
+	 * @param node Host and record type to be used for search.
+	 * @return The cached records the node leads to, or an empty set if they are not all cached.
+	 */
+	private Set<ResourceRecord> getCachedAnswer(DNSNode node) {
+		for (int level = 0; level < maxIndirectionLevel; level++) {
+			Set<ResourceRecord> results = cache.getCachedResults(node);
+			if (!results.isEmpty() || node.getType() == RecordType.CNAME)
+				return results;
+			DNSNode cnameNode = new DNSNode(node.getHostName(), RecordType.CNAME);
+			// Peeked first, so a name without a CNAME record does not count a second miss
+			if (cache.peekCachedResults(cnameNode).isEmpty())
+				return results;
+			Set<ResourceRecord> cnames = cache.getCachedResults(cnameNode);
+			if (cnames.isEmpty())
+				return results;
+			node = new DNSNode(cnames.iterator().next().getTextResult(), node.getType());
+		}
+		return Collections.emptySet();
+	}
+
+	/**
+	 * Finds stale results for a node, following CNAME records, fresh or stale, to the node that
+	 * holds the records.
+	 *
+	 * @param node Host and record type to be used for search.
+	 * @return A potentially empty set of stale results.
+	 */
+	private Set<ResourceRecord> getStaleResults(DNSNode node) {
+		for (int level = 0; level < maxIndirectionLevel; level++) {
+			Set<ResourceRecord> results = cache.getStaleResults(node);
+			if (results.isEmpty())
+				results = cache.peekCachedResults(node);
+			if (!results.isEmpty() || node.getType() == RecordType.CNAME)
+				return results;
+			DNSNode cnameNode = new DNSNode(node.getHostName(), RecordType.CNAME);
+			Set<ResourceRecord> cnames = cache.peekCachedResults(cnameNode);
+			if (cnames.isEmpty())
+				cnames = cache.getStaleResults(cnameNode);
+			if (cnames.isEmpty())
+				return Collections.emptySet();
+			node = new DNSNode(cnames.iterator().next().getTextResult(), node.getType());
+		}
+		return Collections.emptySet();
+	}
+
+	/**
+	 * Returns an executor running each lookup on its own virtual thread, or, on runtimes without
+	 * virtual threads, on one of DEFAULT_POOL_SIZE platform threads, later lookups waiting in the
+	 * queue of the pool. Waiting for the resolution of another lookup cannot starve the pool, as
+	 * that lookup already holds a thread.
+	 */
+	private static ExecutorService newDefaultExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(DEFAULT_POOL_SIZE, runnable -> {
+				Thread thread = new Thread(runnable, "dns-resolver");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * Finds all the results for a specific node. A node with a cached negative answer has no
+	 * results, and is not queried again until that answer expires. The search is only repeated
+	 * if it found a CNAME record for the name it resolved, to follow it.
+	 *
+	 * @param node             Host and record type to be used for search.
+	 * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
+	 *                         The initial call should be made with 0 (zero), while recursive calls for
+	 *                         regarding CNAME results should increment this value by 1. Once this value
+	 *                         reaches the maximum indirection level, the function prints an error message
+	 *                         and returns an empty set.
+	 * @param context          State of the lookup, holding its deadline.
+	 * @return A set of resource records corresponding to the specific query requested.
+	 */
+	private Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel, LookupContext context) {
+		if (indirectionLevel >= maxIndirectionLevel) {
+			System.err.println("Maximum number of indirection levels reached.");
+			return Collections.emptySet();
+		}
+		if (context.isExpired())
+			return cache.peekCachedResults(node);
+		if (cache.isNegative(node))
+			return Collections.emptySet();
+
+		Set<ResourceRecord> resourceRecords;
+		DNSNode resolvedNode = node;
+		DNSNode cnameNode = getCnameResourceRecords(node, 0);
+		if (cnameNode != null && !cnameNode.equals(node)) {
+			resolvedNode = cnameNode;
+			resourceRecords = resolveDNS(cnameNode, context);
+			if (!resourceRecords.isEmpty()) {
+				ResourceRecord cnameRecord = (ResourceRecord) resourceRecords.toArray()[0];
+				node = new DNSNode(cnameRecord.getHostName(), node.getType());
+			}
+		} else {
+			resourceRecords = resolveDNS(node, context);
+		}
+		if (resourceRecords.isEmpty()) {
+			if (cache.isNegative(resolvedNode) || cache.peekCachedResults(new DNSNode(resolvedNode.getHostName(), RecordType.CNAME)).isEmpty())
+				return Collections.emptySet();
+			return getResults(node, indirectionLevel + 1, context);
+		}
+		return cache.peekCachedResults(node);
+	}
+
+	/**
+	 * Attempts to resolve CNAME in the response
+	 *
+	 * @param node             Host and record type to be used for search.
+	 * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
+	 *                         The initial call should be made with 0 (zero), while recursive calls for
+	 *                         regarding CNAME results should increment this value by 1. Once this value
+	 *                         reaches the maximum indirection level, the function prints an error message
+	 *                         and returns an empty set.
+	 * @return DNSNode
+	 */
+	private DNSNode getCnameResourceRecords(DNSNode node, int indirectionLevel) {
+		if (indirectionLevel >= maxIndirectionLevel) {
+			System.err.println("Maximum number of indirection levels reached.");
+			return null;
+		}
+		DNSNode cnameServerToUse = new DNSNode(node.getHostName(), RecordType.CNAME);
+		if (cache.peekCachedResults(cnameServerToUse).isEmpty()) {
+			return node;
+		}
+		ResourceRecord cnameServerIPRecord = (ResourceRecord) cache.peekCachedResults(cnameServerToUse).toArray()[0];
+		DNSNode cnameNode = new DNSNode(cnameServerIPRecord.getTextResult(), node.getType());
+		if (!cache.peekCachedResults(cnameNode).isEmpty()) {
+			return cnameNode;
+		}
+		return getCnameResourceRecords(cnameNode, indirectionLevel + 1);
+
+	}
+
+	/**
+	 * Resolves all levels until no more levels can be discovered. The search starts at the
+	 * deepest zone cut cached for the name, and only starts over from the root if none of the
+	 * nameservers of that zone answer.
+	 *
+	 * Only one resolution of a node is in progress at a time. A lookup that needs a node that
+	 * another lookup is already resolving waits for that resolution, until its own deadline at
+	 * most, and then reads the results from the cache. A lookup that needs a node it is itself
+	 * resolving gives up on it, since it would otherwise wait for itself, and so does a lookup
+	 * whose wait would close a cycle of lookups waiting for each other, such as two lookups of
+	 * zones whose nameservers are each in the other zone.
+	 *
+	 * @param node    Host and record type to be used for search.
+	 * @param context State of the lookup, holding its deadline.
+	 * @return Set<ResourceRecord>
+	 */
+	private Set<ResourceRecord> resolveDNS(DNSNode node, LookupContext context) {
+		Set<ResourceRecord> results = cache.peekCachedResults(node);
+		if (!results.isEmpty())
+			return results;
+		if (cache.isNegative(node) || !context.enter(node))
+			return Collections.emptySet();
+
+		Resolution resolution = new Resolution(new CompletableFuture<>(), context);
+		Resolution inProgress = inFlight.putIfAbsent(node, resolution);
+		try {
+			if (inProgress == null) {
+				retrieveResultsFromClosestServers(node, context);
+			} else if (startWaiting(context, inProgress.owner())) {
+				try {
+					inProgress.done().get(Math.max(0, context.getRemainingMillis()), TimeUnit.MILLISECONDS);
+				} finally {
+					stopWaiting(context);
+				}
+			}
+		} catch (TimeoutException | ExecutionException ignored) {
+			// The results are whatever the other lookup has cached by now
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (inProgress == null) {
+				inFlight.remove(node, resolution);
+				resolution.done().complete(null);
+			}
+			context.leave(node);
+		}
+		return cache.peekCachedResults(node);
+	}
+
+	/**
+	 * Marks a lookup as waiting for another one, unless the other lookup is already waiting,
+	 * directly or through other lookups, for this one. A lookup waits for one lookup at most at
+	 * a time, so following what each lookup waits for walks a chain that ends, or comes back to
+	 * the waiting lookup if the wait would close a cycle.
+	 *
+	 * @param context Lookup that is about to wait.
+	 * @param owner   Lookup resolving the node it needs.
+	 * @return false if waiting would close a cycle, in which case the lookup must not wait.
+	 */
+	private boolean startWaiting(LookupContext context, LookupContext owner) {
+		synchronized (waitLock) {
+			for (LookupContext waiting = owner; waiting != null; waiting = waiting.getWaitingFor()) {
+				if (waiting == context)
+					return false;
+			}
+			context.setWaitingFor(owner);
+			return true;
+		}
+	}
+
+	private void stopWaiting(LookupContext context) {
+		synchronized (waitLock) {
+			context.setWaitingFor(null);
+		}
+	}
+
+	/**
+	 * Retrieves results from the nameservers of the deepest zone cut cached for the name, or from
+	 * the root if there is none or if none of those nameservers answer.
+	 *
+	 * @param node    Host and record type to be used for search.
+	 * @param context State of the lookup, holding its deadline.
+	 */
+	private void retrieveResultsFromClosestServers(DNSNode node, LookupContext context) {
+		DelegationCache.Delegation delegation = delegations.findClosest(node.getHostName());
+		if (delegation == null) {
+			retrieveResultsFromServers(node, Collections.singletonList(rootServer), ROOT_ZONE, context);
+		} else if (!retrieveResultsFromServers(node, delegation.addresses(), delegation.zone(), context) && !context.isExpired()) {
+			delegations.remove(delegation);
+			retrieveResultsFromServers(node, Collections.singletonList(rootServer), ROOT_ZONE, context);
+		}
+	}
+
+	/**
+	 * Retrieves DNS results from the specified DNS servers. Queries are sent in iterative mode,
+	 * and the query is repeated with the servers of the next level if the provided ones are
+	 * non-authoritative. Each level is queried through raceQuery, so a dead nameserver only
+	 * costs a short hedge delay. Results are stored in the cache, and so are negative answers
+	 * that carry an SOA record. No query is sent once the deadline of the lookup has passed.
+	 *
+	 * A referral is only followed if it delegates a single zone, strictly below the zone of the
+	 * servers that gave it and enclosing the name being resolved. Any other referral, such as a
+	 * server handing out nameservers for a parent zone or for an unrelated one, ends the lookup.
+	 * Records of names outside the zone of the servers are dropped from their responses, so they
+	 * are neither cached nor used as glue.
+	 *
+	 * @param node    Host name and record type to be used for the query.
+	 * @param servers Addresses of the servers to be used for the first query.
+	 * @param zone    Zone the servers are authoritative for, or the empty string for the root.
+	 * @param context State of the lookup, holding its deadline.
+	 * @return false if none of the given servers answered, true otherwise.
+	 */
+	private boolean retrieveResultsFromServers(DNSNode node, List<InetAddress> servers, String zone, LookupContext context) {
+		for (int level = 0; level < maxReferralLevels; level++) {
+			Referral referral;
+			try {
+				DNSServerResponse serverResponse = raceQuery(node, servers, context);
+				referral = DNSQueryHandler.decodeAndCacheResponse(serverResponse.getTransactionID(), serverResponse.getResponse(), cache, zone, verboseTracing);
+			} catch (MissedResponseException | FlagException | IOException e) {
+				if (e instanceof FlagException flag && flag.getNegativeTTL() >= 0) {
+					// The SOA only sets the TTL of negative answers for names of its own zone
+					DNSNode owner = negativeAnswerOwner(node);
+					if (Referral.isInZone(owner.getHostName(), flag.getNegativeZone()))
+						cache.addNegativeResult(owner, flag.isNameError(), flag.getNegativeTTL());
+				}
+				if (verboseTracing) {
+					System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(), node.getType(), -1, "0.0.0.0");
+				}
+				return level > 0 || e instanceof FlagException;
+			} catch (Exception e) {
+				System.out.println(e.getMessage());
+				return true;
+			}
+
+			if (!cache.peekCachedResults(node).isEmpty()) {
+				return true;
+			}
+			String cut = referral.getZone();
+			if (cut == null || cut.length() <= zone.length() || !Referral.isInZone(cut, zone) || !Referral.isInZone(node.getHostName(), cut)) {
+				// Not a referral towards the name
+				return true;
+			}
+			zone = cut;
+			servers = resolveNameServersIntoIPs(referral, context);
+			if (servers.isEmpty()) {
+				// No more levels to discover
+				return true;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the node a negative answer is about. A response that follows a CNAME chain before
+	 * reporting NXDOMAIN or NODATA is about the last name of the chain, not about the name
+	 * asked for (RFC 2308, section 2.1), which does exist. The records of the chain have been
+	 * cached with the response, so the chain is followed through the cache.
+	 *
+	 * @param node Host name and record type of the query that had a negative answer.
+	 * @return The node at the end of the cached CNAME chain of the query.
+	 */
+	private DNSNode negativeAnswerOwner(DNSNode node) {
+		if (node.getType() == RecordType.CNAME)
+			return node;
+		for (int level = 0; level < maxIndirectionLevel; level++) {
+			Set<ResourceRecord> cnames = cache.peekCachedResults(new DNSNode(node.getHostName(), RecordType.CNAME));
+			if (cnames.isEmpty())
+				break;
+			node = new DNSNode(cnames.iterator().next().getTextResult(), node.getType());
+		}
+		return node;
+	}
+
+	/**
+	 * Finds the IPs of the nameservers of the next level. Each nameserver is bound to the glue
+	 * addresses given for it in the referral, or failing that to addresses already cached. Only
+	 * if no nameserver has an address that way are the nameservers resolved, one at a time and
+	 * in random order, until one of them has an address. Which address is queried first is left
+	 * to the server performance table. The zone cut is added to the delegation cache, to expire
+	 * with the first of the records it was built from.
+	 *
+	 * @param referral Nameservers returned from the previous level, with their glue; the referral
+	 *                 has been checked to delegate a single zone towards the name being resolved.
+	 * @param context  State of the lookup, holding its deadline.
+	 * @return List<InetAddress>
+	 */
+	private List<InetAddress> resolveNameServersIntoIPs(Referral referral, LookupContext context) {
+		List<ResourceRecord> records = new ArrayList<>(referral.getNameServers());
+		Collections.shuffle(records, ThreadLocalRandom.current());
+
+		List<String> names = new ArrayList<>();
+		List<InetAddress> addresses = new ArrayList<>();
+		long expirationTime = Long.MAX_VALUE;
+		for (ResourceRecord record : records) {
+			names.add(record.getTextResult());
+			expirationTime = Math.min(expirationTime, record.getExpirationTime());
+			Collection<ResourceRecord> glue = referral.getGlue(record.getTextResult());
+			if (glue.isEmpty())
+				glue = cache.peekCachedResults(new DNSNode(record.getTextResult(), RecordType.A));
+			for (ResourceRecord address : glue) {
+				addresses.add(address.getInetResult());
+				expirationTime = Math.min(expirationTime, address.getExpirationTime());
+			}
+		}
+		for (int i = 0; i < records.size() && addresses.isEmpty(); i++) {
+			for (ResourceRecord address : resolveDNS(new DNSNode(records.get(i).getTextResult(), RecordType.A), context)) {
+				addresses.add(address.getInetResult());
+				expirationTime = Math.min(expirationTime, address.getExpirationTime());
+			}
+		}
+		delegations.put(referral.getZone(), names, addresses, expirationTime);
+		return addresses;
+	}
+
+	/**
+	 * Sends the query to a set of candidate servers and returns the first usable response.
+	 *
+	 * Candidates are ordered by the smoothed round trip time recorded in serverPerformance, and
+	 * the query goes to the fastest one. If no usable response has arrived after a short delay
+	 * derived from the round trip time of that server, it is also sent to the next candidate,
+	 * and so on, without abandoning the earlier queries. A query that fails (a timeout, or a
+	 * server failure response) makes the next candidate be tried right away. At most
+	 * QUERY_RESEND_MAX_ATTEMPTS queries are sent, cycling through the candidates.
+	 *
+	 * Each query times out after the retransmission timeout of its server, derived from the
+	 * round trips observed so far and backed off after consecutive failures, so a lost packet is
+	 * resent after a few round trips. No query waits past the deadline of the lookup.
+	 *
+	 * @param node    Host and record type to be used for search.
+	 * @param servers The IP addresses of the candidate servers.
+	 * @param context State of the lookup, holding its deadline.
+	 * @return A DNSServerResponse Object containing the response buffer and the transaction ID.
+	 * @throws IOException if no candidate answered, or SocketTimeoutException if every query timed
+	 *                     out or the deadline of the lookup passed
+	 */
+	private DNSServerResponse raceQuery(DNSNode node, List<InetAddress> servers, LookupContext context) throws IOException {
+		servers = serverPerformance.rank(servers);
+		BlockingQueue<CompletableFuture<DNSServerResponse>> completed = new LinkedBlockingQueue<>();
+		List<RacingQuery> queries = new ArrayList<>();
+		if (context.isExpired())
+			throw new SocketTimeoutException("Deadline passed before " + node + " could be queried");
+		queries.add(sendRacingQuery(node, servers.get(0), completed, context));
+		int outstanding = 1;
+		IOException failure = null;
+		try {
+			while (outstanding > 0) {
+				int sent = queries.size();
+				boolean canHedge = sent < servers.size() && sent < QUERY_RESEND_MAX_ATTEMPTS;
+				InetAddress lastServer = queries.get(sent - 1).server;
+				long remaining = context.getRemainingMillis();
+				if (remaining <= 0)
+					throw new SocketTimeoutException("Deadline passed while waiting for " + node);
+				CompletableFuture<DNSServerResponse> result =
+						completed.poll(canHedge ? Math.min(hedgeDelayMillis(lastServer), remaining) : remaining, TimeUnit.MILLISECONDS);
+				if (result != null) {
+					outstanding--;
+					try {
+						DNSServerResponse response = result.join();
+						recordLostRaces(queries);
+						return response;
+					} catch (CompletionException e) {
+						failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+					}
+				}
+				// Hedge to a new candidate when the delay has passed, or retry right after a failure
+				if (sent < QUERY_RESEND_MAX_ATTEMPTS && (result != null || canHedge) && !context.isExpired()) {
+					queries.add(sendRacingQuery(node, servers.get(sent % servers.size()), completed, context));
+					outstanding++;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + node);
+		}
+		throw failure;
+	}
+
+	/**
+	 * Sends one query of a race, and adds its future to the queue once it is complete. A response
+	 * is only counted as a success if the server did not report a failure of its own. The query
+	 * times out after the retransmission timeout of the server, or at the deadline if sooner.
+	 *
+	 * A format error is taken as the server not supporting EDNS, and the query is sent again
+	 * without its OPT record. A truncated response is replaced by the response to the same
+	 * query over TCP. Either way, the round trip recorded for the server is the one of its first
+	 * response, and a failure over TCP is not held against it.
+	 */
+	private RacingQuery sendRacingQuery(DNSNode node, InetAddress server, BlockingQueue<CompletableFuture<DNSServerResponse>> completed,
+										LookupContext context) {
+		// IDs are 16 bits on the wire, so they must be in [0, 65535]
+		int transactionID = ThreadLocalRandom.current().nextInt(65536);
+		if (verboseTracing) {
+			System.out.println();
+			System.out.println();
+			System.out.println("Query ID     " + transactionID + " " + node.getHostName() + "  " + node.getType() + " --> " + server.getHostAddress());
+		}
+		RacingQuery query = new RacingQuery(server, System.nanoTime(), new CompletableFuture<>());
+		ByteBuffer message = DNSQueryHandler.getMessageQuery(node, transactionID);
+		long timeout = Math.max(1, Math.min(serverPerformance.getRetransmitTimeout(server), context.getRemainingMillis()));
+		long[] answeredAt = new long[1];
+		boolean[] withoutEdns = new boolean[1];
+		DNSTransport firstTransport = tcpOnly ? tcpTransport : transport;
+		firstTransport.send(message, server, port, transactionID, timeout).thenCompose(response -> {
+			answeredAt[0] = System.nanoTime();
+			if (!isFormatError(response))
+				return CompletableFuture.completedFuture(response);
+			withoutEdns[0] = true;
+			ByteBuffer plain = DNSQueryHandler.withoutEdns(DNSQueryHandler.getMessageQuery(node, transactionID));
+			return firstTransport.send(plain, server, port, transactionID, timeout);
+		}).thenCompose(response -> {
+			if (!isTruncated(response))
+				return CompletableFuture.completedFuture(response);
+			if (verboseTracing)
+				System.out.println("Response ID " + transactionID + " is truncated, retrying over TCP");
+			ByteBuffer retry = DNSQueryHandler.getMessageQuery(node, transactionID);
+			if (withoutEdns[0])
+				DNSQueryHandler.withoutEdns(retry);
+			long tcpTimeout = Math.max(1, Math.min(TCP_QUERY_TIMEOUT_MILLIS, context.getRemainingMillis()));
+			return tcpTransport.send(retry, server, port, transactionID, tcpTimeout);
+		}).whenComplete((response, e) -> {
+			if (e != null && answeredAt[0] != 0) {
+				Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+				query.result.completeExceptionally(cause instanceof IOException ? cause : new IOException(cause));
+			} else if (e != null) {
+				serverPerformance.recordFailure(server);
+				Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+				query.result.completeExceptionally(cause instanceof TimeoutException
+						? new SocketTimeoutException("No response from " + server.getHostAddress()) : cause);
+			} else if (!isUsable(response)) {
+				serverPerformance.recordFailure(server);
+				query.result.completeExceptionally(new IOException("Server failure from " + server.getHostAddress()));
+			} else {
+				serverPerformance.recordResponse(server, answeredAt[0] - query.sentAt);
+				query.result.complete(new DNSServerResponse(response, transactionID));
+			}
+			completed.add(query.result);
+		});
+		return query;
+	}
+
+	/**
+	 * Servers that had not answered when the race was won were at least as slow as the time
+	 * they have been waited for, which is recorded so they are not preferred next time.
+	 */
+	private void recordLostRaces(List<RacingQuery> queries) {
+		long now = System.nanoTime();
+		for (RacingQuery query : queries) {
+			if (!query.result.isDone())
+				serverPerformance.recordUnanswered(query.server, now - query.sentAt);
+		}
+	}
+
+	/**
+	 * A response is usable unless the server reports that it could not process the query (format
+	 * error, server failure, not implemented or refused), in which case another server should be asked.
+	 */
+	private static boolean isUsable(ByteBuffer response) {
+		if (response.limit() < 4 || (response.get(2) & 0x80) == 0)
+			return false;
+		int rcode = response.get(3) & 0x0F;
+		return rcode != 1 && rcode != 2 && rcode != 4 && rcode != 5;
+	}
+
+	private static boolean isFormatError(ByteBuffer response) {
+		return response.limit() >= 4 && (response.get(3) & 0x0F) == 1;
+	}
+
+	private static boolean isTruncated(ByteBuffer response) {
+		return response.limit() >= 3 && (response.get(2) & 0x02) != 0;
+	}
+
+	/**
+	 * Delay before a query is also sent to the next candidate: twice the smoothed round trip
+	 * time of the server last queried, within [MIN_HEDGE_DELAY_MILLIS, MAX_HEDGE_DELAY_MILLIS].
+	 */
+	private long hedgeDelayMillis(InetAddress server) {
+		long delay = 2 * serverPerformance.getSmoothedRoundTrip(server) / 1_000_000;
+		return Math.max(MIN_HEDGE_DELAY_MILLIS, Math.min(delay, MAX_HEDGE_DELAY_MILLIS));
+	}
+
+	/**
+	 * A resolution in progress: the future completed once it is done, and the lookup running it.
+	 */
+	private record Resolution(CompletableFuture<Void> done, LookupContext owner) {
+	}
+
+	private record RacingQuery(InetAddress server, long sentAt, CompletableFuture<DNSServerResponse> result) {
+	}
+}
@@ -0,0 +1,179 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.concurrent.Executor;
+
+/**
+ * Settings of a Resolver. Only the root server is required; every other setting has a default.
+ * A resolver copies its configuration when it is created, so later changes do not affect it;
+ * the root server and tracing of a running resolver are changed through the resolver itself.
+ *
+ * The refresh-ahead and stale window settings belong to the cache, and are applied to it when
+ * the resolver is created, so resolvers sharing a cache also share the last of these settings.
+ */
+public class ResolverConfig {
+
+	public static final int DEFAULT_DNS_PORT = 53;
+	public static final long DEFAULT_LOOKUP_TIMEOUT_MILLIS = 15000;
+	public static final int DEFAULT_MAX_INDIRECTION_LEVEL = 10;
+	public static final int DEFAULT_MAX_REFERRAL_LEVELS = 16;
+	// RFC 8767 suggests answering with stale data after 1.8 seconds
+	public static final long DEFAULT_CLIENT_RESPONSE_TIMEOUT_MILLIS = 1800;
+
+	private InetAddress rootServer;
+	private int port = DEFAULT_DNS_PORT;
+	private long lookupTimeoutMillis = DEFAULT_LOOKUP_TIMEOUT_MILLIS;
+	private int maxIndirectionLevel = DEFAULT_MAX_INDIRECTION_LEVEL;
+	private int maxReferralLevels = DEFAULT_MAX_REFERRAL_LEVELS;
+	private long clientResponseTimeoutMillis = DEFAULT_CLIENT_RESPONSE_TIMEOUT_MILLIS;
+	private Executor executor;
+	private boolean tcpOnly = false;
+	private boolean verboseTracing = false;
+	private double refreshAheadFraction = DNSCache.DEFAULT_REFRESH_AHEAD_FRACTION;
+	private int refreshMinimumHits = DNSCache.DEFAULT_REFRESH_MINIMUM_HITS;
+	private long staleWindowMillis = DNSCache.DEFAULT_STALE_WINDOW_MILLIS;
+
+	/**
+	 * @param rootServer The IP address of the root DNS server to start the search at.
+	 */
+	public ResolverConfig(InetAddress rootServer) {
+		this.rootServer = rootServer;
+	}
+
+	public InetAddress getRootServer() {
+		return rootServer;
+	}
+
+	public void setRootServer(InetAddress rootServer) {
+		this.rootServer = rootServer;
+	}
+
+	/**
+	 * @return The port every nameserver is queried on.
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * @return The time a whole lookup may take, including the lookups of the nameservers it needs.
+	 */
+	public long getLookupTimeoutMillis() {
+		return lookupTimeoutMillis;
+	}
+
+	public void setLookupTimeoutMillis(long lookupTimeoutMillis) {
+		this.lookupTimeoutMillis = lookupTimeoutMillis;
+	}
+
+	/**
+	 * @return The number of CNAME redirections, or retries after an empty answer, a lookup follows.
+	 */
+	public int getMaxIndirectionLevel() {
+		return maxIndirectionLevel;
+	}
+
+	public void setMaxIndirectionLevel(int maxIndirectionLevel) {
+		this.maxIndirectionLevel = maxIndirectionLevel;
+	}
+
+	/**
+	 * @return The number of referrals a lookup follows from its first server.
+	 */
+	public int getMaxReferralLevels() {
+		return maxReferralLevels;
+	}
+
+	public void setMaxReferralLevels(int maxReferralLevels) {
+		this.maxReferralLevels = maxReferralLevels;
+	}
+
+	/**
+	 * @return The time after which a lookup that is still in progress is answered with stale
+	 * records, if the cache has any; zero to only serve stale records when a lookup fails.
+	 */
+	public long getClientResponseTimeoutMillis() {
+		return clientResponseTimeoutMillis;
+	}
+
+	public void setClientResponseTimeoutMillis(long clientResponseTimeoutMillis) {
+		this.clientResponseTimeoutMillis = clientResponseTimeoutMillis;
+	}
+
+	/**
+	 * @return true if every query is sent over TCP, rather than over UDP with TCP only used for
+	 * truncated responses.
+	 */
+	public boolean isTcpOnly() {
+		return tcpOnly;
+	}
+
+	public void setTcpOnly(boolean tcpOnly) {
+		this.tcpOnly = tcpOnly;
+	}
+
+	/**
+	 * @return true if the resolver prints every query it sends and every response it receives.
+	 */
+	public boolean isVerboseTracing() {
+		return verboseTracing;
+	}
+
+	public void setVerboseTracing(boolean verboseTracing) {
+		this.verboseTracing = verboseTracing;
+	}
+
+	/**
+	 * @return The fraction of the TTL, at the end of it, during which reads of a node make the
+	 * resolver refresh it; zero disables refreshing.
+	 */
+	public double getRefreshAheadFraction() {
+		return refreshAheadFraction;
+	}
+
+	/**
+	 * @return The number of reads within the refresh window a node needs before it is refreshed.
+	 */
+	public int getRefreshMinimumHits() {
+		return refreshMinimumHits;
+	}
+
+	/**
+	 * Sets when nodes are refreshed ahead of their expiration, as DNSCache.setRefreshAhead does.
+	 */
+	public void setRefreshAhead(double fraction, int minimumHits) {
+		this.refreshAheadFraction = fraction;
+		this.refreshMinimumHits = minimumHits;
+	}
+
+	/**
+	 * @return The time after their expiration during which records may still be served stale;
+	 * zero disables serving stale.
+	 */
+	public long getStaleWindowMillis() {
+		return staleWindowMillis;
+	}
+
+	public void setStaleWindowMillis(long staleWindowMillis) {
+		this.staleWindowMillis = staleWindowMillis;
+	}
+
+	/**
+	 * @return The executor lookups run on, or null for one created and owned by the resolver.
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Sets the executor lookups run on. A lookup blocks its thread while it waits for responses,
+	 * so the executor needs roughly as many threads as lookups are meant to run at once.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+}
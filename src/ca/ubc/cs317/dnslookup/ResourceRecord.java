@@ -2,30 +2,63 @@ package ca.ubc.cs317.dnslookup;
 
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.util.Date;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Objects;
 
 /** A resource record corresponds to each individual result returned by a DNS response. It links
  * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
  * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
  * and is represented by an expiration time calculated as a delta from the current time.
+ *
+ * Records are kept compact, since the cache may hold millions of them: an address is stored
+ * as its raw bytes, and both its InetAddress and its text form are only created when asked
+ * for. The node of a record may be replaced by an equal one, so records cached for the same
+ * node share a single node and host name.
  */
 public class ResourceRecord implements Serializable {
 
+    // Changed when the fields changed to the node, original TTL and raw address bytes
+    private static final long serialVersionUID = 2L;
+
     private DNSNode node;
-    private Date expirationTime;
-    private String textResult;
-    private InetAddress inetResult;
+    private final long expirationTime;
+    private final int originalTTL;
+    private final String textResult;
+    private final byte[] address;
 
     public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
-        this.node = new DNSNode(hostName, type);
-        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
-        this.textResult = result;
-        this.inetResult = null;
+        this(new DNSNode(hostName, type), System.currentTimeMillis() + (ttl * 1000), ttl, result, null);
     }
 
     public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
-        this(hostName, type, ttl, result.getHostAddress());
-        this.inetResult = result;
+        this(hostName, type, ttl, result.getAddress());
+    }
+
+    /** Creates an address record from the raw bytes of the address.
+     *
+     * @param address The 4 or 16 bytes of the address. The array is kept by the record, and
+     *                must not be modified afterwards.
+     */
+    ResourceRecord(String hostName, RecordType type, long ttl, byte[] address) {
+        this(new DNSNode(hostName, type), System.currentTimeMillis() + (ttl * 1000), ttl, null, address);
+    }
+
+    /** Restores a record with a known expiration time, such as one read from a cache snapshot.
+     *
+     * @param node           Host name and record type of the record.
+     * @param expirationTime Time at which the record expires, in milliseconds since the epoch.
+     * @param originalTTL    The TTL the record was created with, in seconds.
+     * @param textResult     Textual result, or null for address records.
+     * @param address        Raw bytes of the address, or null for records that do not hold an
+     *                       address. The array is kept by the record.
+     */
+    ResourceRecord(DNSNode node, long expirationTime, long originalTTL, String textResult, byte[] address) {
+        this.node = node;
+        this.expirationTime = expirationTime;
+        this.originalTTL = (int) Math.min(originalTTL, Integer.MAX_VALUE);
+        this.textResult = textResult;
+        this.address = address;
     }
 
     public DNSNode getNode() {
@@ -48,7 +81,23 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationTime - System.currentTimeMillis() + 999) / 1000;
+    }
+
+    /** The TTL this record was created with, as obtained from the DNS server.
+     *
+     * @return The original number of seconds this record was valid for.
+     */
+    public long getOriginalTTL() {
+        return originalTTL;
+    }
+
+    /** The time at which this record expires.
+     *
+     * @return The expiration time, in milliseconds since the epoch.
+     */
+    public long getExpirationTime() {
+        return expirationTime;
     }
 
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
@@ -58,7 +107,7 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has not expired yet, and false otherwise.
      */
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return expirationTime > System.currentTimeMillis();
     }
 
     /** Returns true if this record expires before another record. This method may be used to
@@ -70,15 +119,49 @@ public class ResourceRecord implements Serializable {
      * @return true if this record expires before the parameter record, or false otherwise.
      */
     public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
+        return this.expirationTime < record.expirationTime;
     }
 
+    /** Returns the textual result of this record. For an address record, this is the address
+     * in text form, which is created on each call.
+     *
+     * @return The textual result of this record.
+     */
     public String getTextResult() {
-        return textResult;
+        if (address == null)
+            return textResult;
+        return getInetResult().getHostAddress();
     }
 
+    /** Returns the address held by this record, created on each call from its raw bytes.
+     *
+     * @return The address of this record, or null if it does not hold an address.
+     */
     public InetAddress getInetResult() {
-        return inetResult;
+        if (address == null)
+            return null;
+        try {
+            return InetAddress.getByAddress(node.getHostName(), address);
+        } catch (UnknownHostException e) {
+            // Only thrown for an address of illegal length, which the constructors never store
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Returns the raw bytes of the address held by this record, without copying them. The
+     * array must not be modified.
+     *
+     * @return The address bytes, or null if this record does not hold an address.
+     */
+    byte[] getAddressBytes() {
+        return address;
+    }
+
+    /** Replaces the node of this record by an equal one, so that records of the same node
+     * share it. Used by the cache when the record is stored.
+     */
+    void shareNode(DNSNode node) {
+        this.node = node;
     }
 
     @Override
@@ -89,14 +172,14 @@ public class ResourceRecord implements Serializable {
         ResourceRecord record = (ResourceRecord) o;
 
         if (!node.equals(record.node)) return false;
-        if (!textResult.equals(record.textResult)) return false;
-        return inetResult != null ? inetResult.equals(record.inetResult) : record.inetResult == null;
+        if (!Arrays.equals(address, record.address)) return false;
+        return Objects.equals(textResult, record.textResult);
     }
 
     @Override
     public int hashCode() {
         int result = node.hashCode();
-        result = 31 * result + textResult.hashCode();
+        result = 31 * result + (address != null ? Arrays.hashCode(address) : textResult.hashCode());
         return result;
     }
 }
@@ -0,0 +1,200 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a smoothed round trip time (SRTT), its variance and a failure count for every server
+ * that has been queried, shared by all lookups, and uses them to decide which server to ask
+ * first.
+ *
+ * Selection works like BIND's: candidates are ordered by SRTT, fastest first. A server that has
+ * never been queried starts with a small random SRTT, so it is tried soon. Every time a server
+ * is passed over, its SRTT decays a little, so a server that was slow or unreachable once is
+ * eventually tried again instead of being avoided forever. A timeout doubles the SRTT of the
+ * server.
+ *
+ * The table also gives the retransmission timeout (RTO) of every server, computed as in
+ * RFC 6298: SRTT + 4 * RTTVAR, 1 second for a server that has never answered, doubled for
+ * every consecutive failure, and kept within [50 ms, 5 s]. A lost packet to a nearby server
+ * is then noticed after a few times its round trip, instead of after a fixed timeout. The RTO
+ * is computed from the round trips actually measured, not from the SRTT used for selection,
+ * so a failure backs the RTO off once rather than through both the doubled SRTT and the
+ * backoff.
+ */
+public class ServerPerformanceTable {
+
+	private static final long INITIAL_SRTT_MAX_NANOS = TimeUnit.MILLISECONDS.toNanos(32);
+	private static final long MAX_SRTT_NANOS = TimeUnit.SECONDS.toNanos(10);
+	private static final long INITIAL_RTO_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final long MIN_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+	private static final long MAX_RTO_NANOS = TimeUnit.SECONDS.toNanos(5);
+	private static final int MAX_BACKOFF_SHIFT = 8;
+	private static final double DECAY_FACTOR = 0.98;
+	private static final int MAX_SERVERS = 100_000;
+	private static final long IDLE_EXPIRY_NANOS = TimeUnit.HOURS.toNanos(1);
+
+	private final Map<InetAddress, ServerStatistics> servers = new ConcurrentHashMap<>();
+	private final Random random = new Random();
+
+	/**
+	 * Records a response from a server.
+	 *
+	 * @param server         Server that answered.
+	 * @param roundTripNanos Time between sending the query and receiving the response.
+	 */
+	public void recordResponse(InetAddress server, long roundTripNanos) {
+		statisticsOf(server).recordResponse(roundTripNanos);
+	}
+
+	/**
+	 * Records a query to a server that timed out or was answered with a server failure.
+	 *
+	 * @param server Server that failed.
+	 */
+	public void recordFailure(InetAddress server) {
+		statisticsOf(server).recordFailure();
+	}
+
+	/**
+	 * Records a query to a server that has not been answered yet, but has already taken longer
+	 * than the answer of another server. The SRTT of the server is raised to at least that time.
+	 *
+	 * @param server       Server that has not answered.
+	 * @param elapsedNanos Time since the query was sent.
+	 */
+	public void recordUnanswered(InetAddress server, long elapsedNanos) {
+		statisticsOf(server).recordUnanswered(elapsedNanos);
+	}
+
+	/**
+	 * Returns the smoothed round trip time of a server.
+	 *
+	 * @param server Server to look up.
+	 * @return The SRTT in nanoseconds, or a small random value if the server was never queried.
+	 */
+	public long getSmoothedRoundTrip(InetAddress server) {
+		return statisticsOf(server).srttNanos();
+	}
+
+	/**
+	 * Returns the time to wait for an answer from a server before the query is considered lost.
+	 *
+	 * @param server Server to look up.
+	 * @return The RTO in milliseconds, backed off exponentially after consecutive failures.
+	 */
+	public long getRetransmitTimeout(InetAddress server) {
+		return TimeUnit.NANOSECONDS.toMillis(statisticsOf(server).retransmitTimeoutNanos());
+	}
+
+	/**
+	 * Returns the number of consecutive failed queries to a server.
+	 *
+	 * @param server Server to look up.
+	 * @return The number of failures since the last response from the server.
+	 */
+	public int getFailureCount(InetAddress server) {
+		return statisticsOf(server).failures();
+	}
+
+	/**
+	 * Orders candidate servers fastest first. Every server but the first has its SRTT decayed.
+	 *
+	 * @param candidates Addresses of the servers that could be queried.
+	 * @return A new list holding the candidates, best first.
+	 */
+	public List<InetAddress> rank(List<InetAddress> candidates) {
+		List<InetAddress> ranked = new ArrayList<>(candidates);
+		if (ranked.size() < 2)
+			return ranked;
+		Map<InetAddress, Long> srtts = new HashMap<>();
+		for (InetAddress candidate : ranked)
+			srtts.put(candidate, statisticsOf(candidate).srttNanos());
+		ranked.sort(Comparator.comparingLong(srtts::get));
+		for (int i = 1; i < ranked.size(); i++)
+			statisticsOf(ranked.get(i)).decay();
+		return ranked;
+	}
+
+	private ServerStatistics statisticsOf(InetAddress server) {
+		ServerStatistics statistics = servers.get(server);
+		if (statistics != null)
+			return statistics;
+		if (servers.size() >= MAX_SERVERS) {
+			long now = System.nanoTime();
+			servers.values().removeIf(s -> now - s.lastUpdated > IDLE_EXPIRY_NANOS);
+		}
+		return servers.computeIfAbsent(server, s -> new ServerStatistics(1 + (long) (random.nextDouble() * INITIAL_SRTT_MAX_NANOS)));
+	}
+
+	/**
+	 * Round trip statistics of a single server, updated as in RFC 6298.
+	 */
+	static final class ServerStatistics {
+		// SRTT used to rank the server, raised by failures and slow answers and decayed when
+		// the server is passed over
+		private long srttNanos;
+		// SRTT of the responses only, from which the RTO is computed
+		private long measuredSrttNanos;
+		private long rttvarNanos;
+		private int failures;
+		private boolean measured;
+		private volatile long lastUpdated = System.nanoTime();
+
+		ServerStatistics(long initialSrttNanos) {
+			this.srttNanos = initialSrttNanos;
+			this.rttvarNanos = initialSrttNanos / 2;
+		}
+
+		synchronized void recordResponse(long roundTripNanos) {
+			if (!measured) {
+				srttNanos = roundTripNanos;
+				measuredSrttNanos = roundTripNanos;
+				rttvarNanos = roundTripNanos / 2;
+				measured = true;
+			} else {
+				rttvarNanos += (Math.abs(measuredSrttNanos - roundTripNanos) - rttvarNanos) / 4;
+				measuredSrttNanos += (roundTripNanos - measuredSrttNanos) / 8;
+				srttNanos += (roundTripNanos - srttNanos) / 8;
+			}
+			failures = 0;
+			lastUpdated = System.nanoTime();
+		}
+
+		synchronized void recordFailure() {
+			failures++;
+			srttNanos = Math.min(Math.max(2 * srttNanos, INITIAL_SRTT_MAX_NANOS), MAX_SRTT_NANOS);
+			lastUpdated = System.nanoTime();
+		}
+
+		synchronized void recordUnanswered(long elapsedNanos) {
+			srttNanos = Math.min(Math.max(srttNanos, elapsedNanos), MAX_SRTT_NANOS);
+			lastUpdated = System.nanoTime();
+		}
+
+		synchronized void decay() {
+			srttNanos = (long) (srttNanos * DECAY_FACTOR);
+		}
+
+		synchronized long srttNanos() {
+			return srttNanos;
+		}
+
+		synchronized long retransmitTimeoutNanos() {
+			long rto = measured ? measuredSrttNanos + 4 * rttvarNanos : INITIAL_RTO_NANOS;
+			rto = Math.max(MIN_RTO_NANOS, Math.min(rto, MAX_RTO_NANOS));
+			return Math.min(rto << Math.min(failures, MAX_BACKOFF_SHIFT), MAX_RTO_NANOS);
+		}
+
+		synchronized int failures() {
+			return failures;
+		}
+	}
+}
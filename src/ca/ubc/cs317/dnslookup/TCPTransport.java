@@ -0,0 +1,298 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * A TCP transport, used for queries whose UDP response was truncated, or for every query when
+ * the resolver is configured to use TCP only. Messages are prefixed by their length as
+ * described in RFC 1035 (section 4.2.2).
+ *
+ * Connections are pooled per server and kept open while they are used, as RFC 7766 recommends,
+ * so the handshake is only paid once. Each connection carries many queries at once: queries are
+ * written as soon as they are sent, without waiting for earlier responses (pipelining), and
+ * responses, which may come back in any order, are matched to their queries by transaction ID.
+ * A new connection to a server is only opened once every connection to it has
+ * MAX_PIPELINED_QUERIES queries in flight, up to MAX_CONNECTIONS_PER_SERVER connections.
+ * A connection left idle for IDLE_TIMEOUT_MILLIS is closed, and so is one the server closes.
+ * A connection that is not established within CONNECT_TIMEOUT_MILLIS is closed as well,
+ * failing the queries queued on it, so an unreachable server does not hold a pool slot for as
+ * long as the operating system keeps trying to connect.
+ *
+ * Connections are asynchronous channels, so waiting for a response does not hold a thread.
+ */
+public class TCPTransport implements DNSTransport {
+
+	private static final int LENGTH_PREFIX_SIZE = 2;
+	private static final int HEADER_SIZE = 12;
+	private static final int MAX_PIPELINED_QUERIES = 64;
+	private static final int MAX_CONNECTIONS_PER_SERVER = 4;
+	private static final long IDLE_TIMEOUT_MILLIS = 10_000;
+	private static final long CONNECT_TIMEOUT_MILLIS = 5_000;
+
+	private final Map<InetSocketAddress, List<Connection>> pool = new ConcurrentHashMap<>();
+	private volatile boolean closed = false;
+
+	@Override
+	public CompletableFuture<ByteBuffer> send(ByteBuffer query, InetAddress server, int port, int transactionID, long timeoutMillis) {
+		CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+		if (closed) {
+			future.completeExceptionally(new IOException("Transport is closed"));
+			return future;
+		}
+		// The query is written after send returns, so it is copied
+		ByteBuffer request = ByteBuffer.allocate(LENGTH_PREFIX_SIZE + query.remaining());
+		request.putShort((short) query.remaining()).put(query.duplicate()).flip();
+
+		InetSocketAddress address = new InetSocketAddress(server, port);
+		try {
+			// A connection may be closed between being picked and being used, and is then replaced,
+			// unless it never connected, as the next one would most likely fail the same way
+			Connection connection;
+			while (!(connection = acquire(address)).send(request, transactionID & 0xFFFF, future)) {
+				if (closed)
+					throw new IOException("Transport is closed");
+				if (!connection.connected)
+					throw new IOException("Could not connect to " + address, connection.closeCause);
+			}
+		} catch (IOException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+		future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+		return future;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		IOException closedException = new IOException("Transport is closed");
+		for (List<Connection> connections : pool.values()) {
+			synchronized (connections) {
+				for (Connection connection : new ArrayList<>(connections))
+					connection.close(closedException);
+			}
+		}
+	}
+
+	/**
+	 * Returns the connection to a server with the fewest queries in flight, or opens a new one
+	 * if all of them are busy and the server has room for another. A new connection is added to
+	 * the pool before it starts connecting, so that it is removed again if connecting fails at once.
+	 */
+	private Connection acquire(InetSocketAddress address) throws IOException {
+		List<Connection> connections = pool.computeIfAbsent(address, key -> new ArrayList<>());
+		synchronized (connections) {
+			Connection best = null;
+			for (Connection connection : connections) {
+				if (connection.closed)
+					continue;
+				if (best == null || connection.inFlight.size() < best.inFlight.size())
+					best = connection;
+			}
+			if (best != null && (best.inFlight.size() < MAX_PIPELINED_QUERIES || connections.size() >= MAX_CONNECTIONS_PER_SERVER))
+				return best;
+			Connection connection = new Connection(connections);
+			connections.add(connection);
+			connection.connect(address);
+			return connection;
+		}
+	}
+
+	/**
+	 * A pooled connection to a server. Writes are queued, since a channel allows a single write
+	 * at a time, and written one after the other; a single read loop takes the responses as they
+	 * come. The connection removes itself from the pool once it is closed, failing the queries
+	 * still in flight on it.
+	 */
+	private static final class Connection {
+		private final AsynchronousSocketChannel channel;
+		private final List<Connection> connections;
+		private final Map<Integer, CompletableFuture<ByteBuffer>> inFlight = new ConcurrentHashMap<>();
+		private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean writing = new AtomicBoolean();
+		private final ByteBuffer length = ByteBuffer.allocate(LENGTH_PREFIX_SIZE);
+		private volatile boolean connected = false;
+		private volatile boolean closed = false;
+		private volatile Throwable closeCause;
+		private volatile long lastUsed = System.nanoTime();
+
+		Connection(List<Connection> connections) throws IOException {
+			this.channel = AsynchronousSocketChannel.open();
+			this.connections = connections;
+		}
+
+		/**
+		 * Starts connecting to the server, and closes the connection if it is not established
+		 * within CONNECT_TIMEOUT_MILLIS.
+		 */
+		void connect(InetSocketAddress address) {
+			try {
+				channel.connect(address, null, handler((Void result) -> {
+					connected = true;
+					writeNext();
+					readLength();
+				}));
+			} catch (RuntimeException e) {
+				// An unresolved or unsupported address
+				close(e);
+				return;
+			}
+			CompletableFuture.delayedExecutor(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).execute(() -> {
+				if (!connected)
+					close(new IOException("Connect timed out"));
+			});
+			scheduleIdleCheck();
+		}
+
+		/**
+		 * Queues a query on this connection.
+		 *
+		 * @return false if the connection was closed before the query could be queued
+		 */
+		boolean send(ByteBuffer request, int transactionID, CompletableFuture<ByteBuffer> future) {
+			if (inFlight.putIfAbsent(transactionID, future) != null) {
+				future.completeExceptionally(new IOException("Query " + transactionID + " is already in flight on this connection"));
+				return true;
+			}
+			// Checked after the query is in flight, so that close either sees it or is seen here
+			if (closed) {
+				inFlight.remove(transactionID, future);
+				return false;
+			}
+			future.whenComplete((response, e) -> inFlight.remove(transactionID, future));
+			lastUsed = System.nanoTime();
+			writeQueue.add(request);
+			if (connected)
+				writeNext();
+			return true;
+		}
+
+		/**
+		 * Writes the queued requests, unless another thread already is. A request is written
+		 * whole before the next one is started.
+		 */
+		private void writeNext() {
+			if (!writing.compareAndSet(false, true))
+				return;
+			ByteBuffer request = writeQueue.poll();
+			if (request == null) {
+				writing.set(false);
+				// A request queued after the poll but before the flag was cleared would be left behind
+				if (!writeQueue.isEmpty())
+					writeNext();
+				return;
+			}
+			write(request);
+		}
+
+		private void write(ByteBuffer request) {
+			channel.write(request, null, handler((Integer written) -> {
+				if (request.hasRemaining()) {
+					write(request);
+				} else {
+					writing.set(false);
+					writeNext();
+				}
+			}));
+		}
+
+		private void readLength() {
+			if (length.hasRemaining()) {
+				channel.read(length, null, handler((Integer read) -> {
+					if (read < 0)
+						close(new EOFException("Connection closed by the server"));
+					else
+						readLength();
+				}));
+				return;
+			}
+			int size = length.flip().getShort() & 0xFFFF;
+			length.clear();
+			if (size < HEADER_SIZE) {
+				close(new IOException("Response of " + size + " bytes is too short"));
+				return;
+			}
+			readResponse(ByteBuffer.allocate(size));
+		}
+
+		private void readResponse(ByteBuffer response) {
+			if (response.hasRemaining()) {
+				channel.read(response, null, handler((Integer read) -> {
+					if (read < 0)
+						close(new EOFException("Connection closed in the middle of a response"));
+					else
+						readResponse(response);
+				}));
+				return;
+			}
+			response.flip();
+			lastUsed = System.nanoTime();
+			// A response to a query that has timed out is dropped
+			CompletableFuture<ByteBuffer> future = inFlight.remove(response.getShort(0) & 0xFFFF);
+			if (future != null)
+				future.complete(response);
+			readLength();
+		}
+
+		/**
+		 * Closes the connection once it has been idle for IDLE_TIMEOUT_MILLIS, checking again
+		 * later if it has been used since.
+		 */
+		private void scheduleIdleCheck() {
+			CompletableFuture.delayedExecutor(IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).execute(() -> {
+				if (closed)
+					return;
+				if (inFlight.isEmpty() && System.nanoTime() - lastUsed >= TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MILLIS))
+					close(new IOException("Connection closed after being idle"));
+				else
+					scheduleIdleCheck();
+			});
+		}
+
+		void close(Throwable cause) {
+			if (closed)
+				return;
+			closeCause = cause;
+			closed = true;
+			synchronized (connections) {
+				connections.remove(this);
+			}
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+			}
+			inFlight.values().forEach(future -> future.completeExceptionally(cause));
+		}
+
+		private <T> CompletionHandler<T, Void> handler(Consumer<T> next) {
+			return new CompletionHandler<>() {
+				@Override
+				public void completed(T result, Void attachment) {
+					if (!closed)
+						next.accept(result);
+				}
+
+				@Override
+				public void failed(Throwable e, Void attachment) {
+					close(e);
+				}
+			};
+		}
+	}
+}
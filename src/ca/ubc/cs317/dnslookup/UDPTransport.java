@@ -0,0 +1,142 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A non-blocking UDP transport. Queries are sent over a small set of datagram channels, and a
+ * single receiver thread waits on all of them with a selector. Every outstanding query is kept
+ * in an in-flight table keyed by (server, port, transaction ID), so any number of queries from
+ * any number of lookups can be waiting for their responses at the same time.
+ */
+public class UDPTransport implements DNSTransport {
+
+	// Responses may be as large as the UDP payload size advertised in queries
+	private static final int RECEIVE_BUFFER_SIZE = DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE;
+	private static final int HEADER_SIZE = 12;
+
+	private final DatagramChannel[] channels;
+	private final Selector selector;
+	private final Thread receiver;
+	private final Map<InFlightKey, CompletableFuture<ByteBuffer>> inFlight = new ConcurrentHashMap<>();
+	private final AtomicInteger nextChannel = new AtomicInteger();
+	private volatile boolean closed = false;
+
+	/**
+	 * Opens the channels and starts the receiver thread.
+	 *
+	 * @param channelCount Number of UDP sockets queries are spread over.
+	 * @throws IOException if a channel or the selector could not be opened
+	 */
+	public UDPTransport(int channelCount) throws IOException {
+		selector = Selector.open();
+		channels = new DatagramChannel[channelCount];
+		for (int i = 0; i < channelCount; i++) {
+			channels[i] = DatagramChannel.open();
+			channels[i].configureBlocking(false);
+			channels[i].bind(null);
+			channels[i].register(selector, SelectionKey.OP_READ);
+		}
+		receiver = new Thread(this::receiveLoop, "dns-udp-receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	@Override
+	public CompletableFuture<ByteBuffer> send(ByteBuffer query, InetAddress server, int port, int transactionID, long timeoutMillis) {
+		InetSocketAddress address = new InetSocketAddress(server, port);
+		InFlightKey key = new InFlightKey(address, transactionID & 0xFFFF);
+		CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+		if (closed) {
+			future.completeExceptionally(new IOException("Transport is closed"));
+			return future;
+		}
+		if (inFlight.putIfAbsent(key, future) != null) {
+			future.completeExceptionally(new IOException("Query " + transactionID + " to " + address + " is already in flight"));
+			return future;
+		}
+		future.whenComplete((response, e) -> inFlight.remove(key, future));
+		future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+
+		DatagramChannel channel = channels[Math.floorMod(nextChannel.getAndIncrement(), channels.length)];
+		try {
+			if (channel.send(query.duplicate(), address) == 0) {
+				future.completeExceptionally(new IOException("Send buffer is full"));
+			}
+		} catch (IOException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			selector.close();
+		} catch (IOException ignored) {
+		}
+		for (DatagramChannel channel : channels) {
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+			}
+		}
+		IOException closedException = new IOException("Transport is closed");
+		inFlight.values().forEach(future -> future.completeExceptionally(closedException));
+	}
+
+	/**
+	 * Waits for responses on all channels and completes the matching in-flight queries.
+	 * Responses that do not match any outstanding query (late, duplicated or spoofed) are dropped.
+	 */
+	private void receiveLoop() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+		while (!closed) {
+			try {
+				selector.select();
+				for (SelectionKey selected : selector.selectedKeys()) {
+					DatagramChannel channel = (DatagramChannel) selected.channel();
+					SocketAddress source;
+					while ((source = channel.receive(buffer.clear())) != null) {
+						buffer.flip();
+						dispatch(source, buffer);
+					}
+				}
+				selector.selectedKeys().clear();
+			} catch (ClosedSelectorException e) {
+				return;
+			} catch (IOException e) {
+				if (closed)
+					return;
+			}
+		}
+	}
+
+	private void dispatch(SocketAddress source, ByteBuffer buffer) {
+		if (buffer.remaining() < HEADER_SIZE)
+			return;
+		InFlightKey key = new InFlightKey(source, buffer.getShort(0) & 0xFFFF);
+		CompletableFuture<ByteBuffer> future = inFlight.remove(key);
+		if (future == null)
+			return;
+		byte[] response = new byte[buffer.remaining()];
+		buffer.get(response);
+		future.complete(ByteBuffer.wrap(response));
+	}
+
+	private record InFlightKey(SocketAddress address, int transactionID) {
+	}
+}